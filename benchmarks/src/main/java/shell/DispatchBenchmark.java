@@ -0,0 +1,86 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Resolves commands against a synthetic PATH of many directories,
+ * with the target executable in the last one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class DispatchBenchmark {
+
+    @Param({"16", "256"})
+    public int directories;
+
+    @Param({"50"})
+    public int executables;
+
+    private final Session session = new Session();
+
+    private Path root;
+    private Context context;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("dispatch-bench");
+        var path = new StringJoiner(":");
+        var executable = PosixFilePermissions.fromString("rwxr-xr-x");
+        for (int d = 0; d < directories; d++) {
+            var directory = Files.createDirectory(root.resolve("bin" + d));
+            for (int e = 0; e < executables; e++)
+                Files.setPosixFilePermissions(Files.createFile(directory.resolve("tool" + d + "_" + e)), executable);
+            path.add(directory.toString());
+        }
+        Files.setPosixFilePermissions(Files.createFile(root.resolve("bin" + (directories - 1)).resolve("target")), executable);
+
+        session.put("PATH", path.toString());
+        context = Context.of("target --flag value");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        try (var files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object resolveCached() {
+        return Command.Registry.resolve(context, session);
+    }
+
+    @Benchmark
+    public Object resolveCold() {
+        session.resolver().clear();
+        return Command.Registry.resolve(context, session);
+    }
+
+    @Benchmark
+    public Object resolveBuiltin() throws IOException {
+        try (var builtin = Context.of("pwd")) {
+            return Command.Registry.resolve(builtin, session);
+        }
+    }
+
+    @Benchmark
+    public Command commandOf() throws IOException {
+        try (var command = Command.of(session, "target --flag value")) {
+            return command;
+        }
+    }
+}
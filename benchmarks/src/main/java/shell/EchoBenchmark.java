@@ -0,0 +1,41 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class EchoBenchmark {
+
+    @Param({"echo hello world", "echo 'a   b' \"c\\\"d\" e\\ f g  h", "echo \"shell's\" 'quoted \\n' text\\\\ plus more words here"})
+    public String line;
+
+    private final Command.EchoCmd echo = new Command.EchoCmd();
+    private final Session session = new Session();
+
+    private Context context;
+
+    @Setup
+    public void setUp() {
+        var sink = new Output.StreamWriter(OutputStream.nullOutputStream());
+        context = new Context(Input.of(line), new Output(sink, sink));
+    }
+
+    @Benchmark
+    public void render() throws IOException {
+        echo.execute(context, session);
+    }
+
+    @Benchmark
+    public void parseAndRender() throws IOException {
+        echo.execute(new Context(Input.of(line), context.output()), session);
+    }
+}
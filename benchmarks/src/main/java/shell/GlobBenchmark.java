@@ -0,0 +1,74 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Expands patterns over a flat directory of many files, one in fifty of them
+ * a {@code .txt}, and over a tree of 64 directories holding the same files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class GlobBenchmark {
+
+    @Param({"10000", "100000"})
+    public int files;
+
+    private Path root;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("glob-bench");
+        var flat = Files.createDirectory(root.resolve("flat"));
+        for (int i = 0; i < files; i++)
+            Files.createFile(flat.resolve(name(i)));
+
+        var tree = Files.createDirectory(root.resolve("tree"));
+        for (int d = 0; d < 64; d++) {
+            var directory = Files.createDirectories(tree.resolve("d" + d % 8).resolve("d" + d));
+            for (int i = d; i < files; i += 64)
+                Files.createFile(directory.resolve(name(i)));
+        }
+    }
+
+    private static String name(int i) {
+        return "f%06d.%s".formatted(i, i % 50 == 0 ? "txt" : "log");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object flatSuffix() {
+        return Input.pipeline("ls flat/*.txt", name -> null, root);
+    }
+
+    @Benchmark
+    public Object flatNoMatch() {
+        return Input.pipeline("ls flat/nothing*", name -> null, root);
+    }
+
+    @Benchmark
+    public Object treeSegments() {
+        return Input.pipeline("ls tree/*/*/*.txt", name -> null, root);
+    }
+
+    @Benchmark
+    public Object treeRecursive() {
+        return Input.pipeline("ls tree/**/*.txt", name -> null, root);
+    }
+}
@@ -0,0 +1,42 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class InputBenchmark {
+
+    @Param({"simple", "quoted", "redirect", "pipeline", "pathological"})
+    public String kind;
+
+    private String line;
+
+    @Setup
+    public void setUp() {
+        line = switch (kind) {
+            case "simple" -> "ls -la /var/log";
+            case "quoted" -> "echo 'hello    world' \"it's \\\"quoted\\\"\" plain\\ escaped";
+            case "redirect" -> "cat /etc/hosts /etc/passwd 1>> /tmp/out.txt 2> /tmp/err.txt";
+            case "pipeline" -> "cat access.log | grep -v health | sort | uniq -c | sort -rn | head -20 > top.txt";
+            case "pathological" -> "echo " + "'a b' \"c\\\"d\" e\\ f ".repeat(2_000);
+            default -> throw new IllegalArgumentException(kind);
+        };
+    }
+
+    @Benchmark
+    public Object parse() {
+        return Input.of(line);
+    }
+
+    @Benchmark
+    public Object pipeline() {
+        return Input.pipeline(line);
+    }
+}
@@ -0,0 +1,60 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Records a finished command line into a journal file in a temporary
+ * directory, for a single command and a pipeline of resolved binaries.
+ * Run with {@code -prof gc} to see that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class JournalBenchmark {
+
+    @Param({"echo hello world", "cat build.log | grep -v DEBUG | sort | uniq -c > summary.txt"})
+    public String line;
+
+    private Path directory;
+    private Journal journal;
+    private List<Command.Cmd> commands;
+    private List<Context> contexts;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal-bench");
+        journal = Journal.open(directory.resolve("journal"));
+        var session = new Session();
+        commands = new ArrayList<>();
+        contexts = new ArrayList<>();
+        for (var input : Input.pipeline(line, session::variable, directory)) {
+            var context = new Context(input, new Output(new Output.StreamWriter(OutputStream.nullOutputStream()),
+                    new Output.StreamWriter(OutputStream.nullOutputStream())));
+            contexts.add(context);
+            commands.add(Command.Registry.resolve(context, session));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("journal"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void record() {
+        journal.record(line, directory, commands, contexts, System.currentTimeMillis(), 0, false);
+    }
+}
@@ -0,0 +1,61 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class OutputBenchmark {
+
+    @Param({"redirect", "stream", "fanout"})
+    public String writer;
+
+    @Param({"80", "8192", "65536"})
+    public int size;
+
+    private Output.Writer target;
+    private String line;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws IOException {
+        target = switch (writer) {
+            case "redirect" -> new Output.RedirectWriter(Path.of("/dev/null"), true);
+            case "stream" -> new Output.StreamWriter(OutputStream.nullOutputStream());
+            case "fanout" -> new Output.FanOutWriter(List.of(
+                    new Output.RedirectWriter(Path.of("/dev/null"), true),
+                    new Output.RedirectWriter(Path.of("/dev/null"), true),
+                    new Output.RedirectWriter(Path.of("/dev/null"), true)));
+            default -> throw new IllegalArgumentException(writer);
+        };
+        line = "x".repeat(size);
+        chunk = line.getBytes(UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        target.close();
+    }
+
+    @Benchmark
+    public void writeLine() throws IOException {
+        target.writeLine(line);
+    }
+
+    @Benchmark
+    public void writeBytes() throws IOException {
+        target.write(chunk, 0, chunk.length);
+    }
+}
@@ -0,0 +1,57 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Starts {@code /bin/true} and waits for it through {@code Runtime.exec},
+ * {@code ProcessBuilder} and the {@link Spawn} launcher. The fork runs with
+ * a 1 GB heap; pass e.g. {@code -jvmArgs -Xmx8g} to see how each launcher
+ * follows the size of the parent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class SpawnBenchmark {
+
+    private static final Path TRUE = Path.of("/bin/true");
+
+    private final Session session = new Session();
+
+    private ProcessBuilder builder;
+    private Environment environment;
+
+    @Setup
+    public void setUp() {
+        if (!Spawn.available()) throw new IllegalStateException("posix_spawn launcher is not available");
+        builder = new ProcessBuilder(TRUE.toString())
+                .redirectInput(Redirect.INHERIT)
+                .redirectOutput(Redirect.DISCARD)
+                .redirectError(Redirect.DISCARD);
+        environment = session.environment();
+    }
+
+    @Benchmark
+    public int runtimeExec() throws IOException, InterruptedException {
+        return Runtime.getRuntime().exec(new String[]{TRUE.toString()}).waitFor();
+    }
+
+    @Benchmark
+    public int processBuilder() throws IOException, InterruptedException {
+        return builder.start().waitFor();
+    }
+
+    @Benchmark
+    public int posixSpawn() throws IOException, InterruptedException {
+        return Spawn.startPipeline(List.of(builder), List.of(TRUE), environment).getFirst().waitFor();
+    }
+}
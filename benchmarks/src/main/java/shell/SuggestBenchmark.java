@@ -0,0 +1,57 @@
+package shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class SuggestBenchmark {
+
+    private static final String[] PREFIXES = {"git", "gcc", "python3", "x86_64-linux-gnu-", "perl", "lib", "k", "docker-", "systemd-"};
+
+    @Param({"10000"})
+    public int corpus;
+
+    @Param({"g", "git", "x86_64-linux-gnu-g", "zz"})
+    public String prefix;
+
+    private String[] words;
+    private Suggest suggest;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+        words = new String[corpus];
+        for (int i = 0; i < corpus; i++) {
+            var sb = new StringBuilder(PREFIXES[random.nextInt(PREFIXES.length)]);
+            int length = 3 + random.nextInt(12);
+            for (int j = 0; j < length; j++) sb.append((char) ('a' + random.nextInt(26)));
+            words[i] = sb.toString();
+        }
+        suggest = new Suggest();
+        for (var word : words) suggest.index(word);
+        suggest.suggest("");
+    }
+
+    /**
+     * Indexing is lazy, the first lookup compiles the trie.
+     */
+    @Benchmark
+    public Suggest.Result index() {
+        var fresh = new Suggest();
+        for (var word : words) fresh.index(word);
+        return fresh.suggest(prefix);
+    }
+
+    @Benchmark
+    public Suggest.Result suggest() {
+        return suggest.suggest(prefix);
+    }
+}
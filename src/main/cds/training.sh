@@ -0,0 +1,10 @@
+# Training run for the AppCDS archive (mvn package -Pappcds).
+# Touches builtins, external commands, pipelines and redirects
+# so their classes end up in the archive.
+pwd
+cd /
+type echo
+type ls
+echo "training" 'run' > /dev/null
+ls / 2> /dev/null | head -1 > /dev/null
+hash
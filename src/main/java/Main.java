@@ -1,26 +1,105 @@
 import shell.Scanner;
 import shell.Session;
+import shell.Startup;
 import shell.Command;
 import shell.Suggest;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 
 public class Main {
 
     public static void main(String[] args) throws Exception {
 
-        var suggest = new Suggest();
-        var scanner = new Scanner(suggest);
+        if (args.length > 0 && args[0].equals("--startup-trace")) {
+            Startup.enable();
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
         var session = new Session();
 
-        Command.initSuggest(suggest);
+        if (args.length >= 1 && args[0].equals("-c")) {
+            if (args.length < 2) fail("-c: option requires an argument", 2);
+            System.exit(batch(session, new BufferedReader(new StringReader(args[1]))));
+        } else if (args.length >= 1) {
+            System.exit(batch(session, script(args[0])));
+        } else if (System.console() == null || !System.console().isTerminal()) {
+            System.exit(batch(session, new BufferedReader(new InputStreamReader(System.in, UTF_8))));
+        }
+
+        interactive(session);
+    }
+
+    private static void interactive(Session session) throws Exception {
+
+        var suggest = new Suggest();
+        var scanner = new Scanner(suggest, session);
+
+        Command.initSuggest(suggest, session);
 
         while (true) {
+            session.jobs().notifyDone();
             String line = scanner.readLine();
 
-            try (var command = Command.of(session, line)) {
+            try (var command = Command.of(session, line, scanner::readContinuation)) {
                 command.execute();
             }
         }
     }
+
+    /**
+     * Runs commands line by line without a terminal: no raw mode, no completion
+     * index and no prompt. Returns the status of the last command.
+     */
+    private static int batch(Session session, BufferedReader reader) throws Exception {
+
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.stripLeading().startsWith("#")) continue;
+
+                try (var command = Command.of(session, line, reader::readLine)) {
+                    command.execute();
+                } catch (IOException | RuntimeException e) {
+                    // one failing line doesn't end the script
+                    System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+                    session.put("?", 1);
+                }
+            }
+        }
+        return session.get("?", 0);
+    }
+
+    /**
+     * Opens the script, or exits with a message and the status sh gives.
+     */
+    private static BufferedReader script(String file) {
+        var path = Path.of(file);
+        try {
+            if (Files.isDirectory(path)) fail(file + ": Is a directory", 126);
+            return Files.newBufferedReader(path, UTF_8);
+        } catch (NoSuchFileException e) {
+            fail(file + ": No such file or directory", 127);
+        } catch (AccessDeniedException e) {
+            fail(file + ": Permission denied", 126);
+        } catch (IOException e) {
+            fail(file + ": " + e.getMessage(), 126);
+        }
+        return null;
+    }
+
+    private static void fail(String message, int status) {
+        System.err.println(message);
+        System.exit(status);
+    }
 }
@@ -1,59 +1,263 @@
 package shell;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.lang.ProcessBuilder.Redirect.PIPE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 
 public final class Command implements AutoCloseable {
 
-    private final Cmd command;
+    /**
+     * Times every command as if it were prefixed with {@code time}.
+     */
+    private static final boolean TIME_ALL = Boolean.getBoolean("shell.time.all");
+
+    private final String line;
+    private final List<Cmd> commands;
     private final Session session;
-    private final Context context;
+    private final List<Context> contexts;
+    private final boolean timed;
+
+    private boolean detached;
+    private List<Process> processes = List.of();
 
-    Command(Cmd command, Session session, Context context) {
-        this.command = command;
+    Command(String line, List<Cmd> commands, Session session, List<Context> contexts, boolean timed) {
+        this.line = line;
+        this.commands = commands;
         this.session = session;
-        this.context = context;
+        this.contexts = contexts;
+        this.timed = timed;
     }
 
+    /**
+     * Runs the command; a timed background command is measured up to its start.
+     */
     public void execute() throws Exception {
-        command.execute(context, session);
+        var time = Time.start(timed);
+        long start = System.currentTimeMillis();
+        var directory = session.pwd();
+        session.put("?", 0);
+        if (contexts.getFirst().input().background())
+            background(start, directory);
+        else
+            foreground(start, directory);
+        if (time != null) time.report(processes);
+    }
+
+    /**
+     * Runs a lone builtin directly and anything else as a pipeline, which
+     * keeps the processes it started for {@link Time}.
+     */
+    private void foreground(long start, Path directory) throws IOException {
+        try {
+            var first = commands.getFirst();
+            if (commands.size() == 1 && !(first instanceof RunCmd) && !first.readsStdin()) {
+                first.execute(contexts.getFirst(), session);
+            } else {
+                var pipeline = new Pipeline(commands, contexts, session);
+                var started = start(pipeline);
+                if (started != null) session.put("?", pipeline.supervise(started));
+            }
+        } finally {
+            journal(start, directory, session.get("?", 0), false);
+        }
+    }
+
+    /**
+     * Starts the processes right away, so their pids are known, and leaves
+     * the rest to a job supervisor which also owns the contexts from now on.
+     */
+    private void background(long start, Path directory) throws IOException {
+        var pipeline = new Pipeline(commands, contexts, session);
+        var started = start(pipeline);
+        if (started == null) {
+            journal(start, directory, session.get("?", 0), true);
+            return;
+        }
+        detached = true;
+
+        var job = session.jobs().start(line.strip(), processes, () -> {
+            int status = -1;
+            try {
+                return status = pipeline.supervise(started);
+            } finally {
+                journal(start, directory, status, true);
+                closeContexts();
+            }
+        });
+        Output.TerminalWriter.STDERR.writeLine("[%d] %d".formatted(job.id, job.pid()));
+    }
+
+    /**
+     * Starts the pipeline's processes and keeps those which run, for {@link Time}
+     * and the job table. If the launcher fails as a whole, as the JDK's does for
+     * a single stage, the error is reported with status 126 and null returned.
+     */
+    private List<Process> start(Pipeline pipeline) throws IOException {
+        List<Process> started;
+        try {
+            started = pipeline.start();
+        } catch (IOException e) {
+            contexts.getFirst().output().error(e.getMessage());
+            session.put("?", 126);
+            return null;
+        }
+        processes = started.stream().filter(p -> p != null && !(p instanceof Spawn.FailedProcess)).toList();
+        return started;
     }
 
     public static Command of(Session session, String line) throws IOException {
-        var context = Context.of(line);
-        var command = Registry.resolve(context);
-        return new Command(command, session, context);
+        return of(session, line, () -> null);
+    }
+
+    /**
+     * Parses the line into a command, reading the bodies of its here-documents
+     * from the lines which follow it.
+     */
+    public static Command of(Session session, String line, Lines more) throws IOException {
+        var commands = new ArrayList<Cmd>();
+        var contexts = new ArrayList<Context>();
+        int keyword = timeKeyword(line);
+        var text = keyword < 0 ? line : line.substring(keyword);
+        var heredocs = heredocs(text, more);
+        List<Input> inputs;
+        try {
+            inputs = Input.pipeline(text, session::variable, session.pwd(), heredocs);
+        } catch (Glob.TooLongException e) {
+            return failed(line, session, e.getMessage(), 126);
+        } catch (Input.SyntaxException e) {
+            return failed(line, session, e.getMessage(), 2);
+        }
+        try {
+            for (var input : inputs) {
+                var context = Context.of(input, session.pwd());
+                contexts.add(context);
+                commands.add(Registry.resolve(context, session));
+            }
+        } catch (FileSystemException e) {
+            for (var context : contexts) context.close();
+            var file = Path.of(e.getFile());
+            if (file.startsWith(session.pwd())) file = session.pwd().relativize(file);
+            return failed(line, session, "%s: %s".formatted(file, Coreutils.reason(e)), 1);
+        } catch (IOException e) {
+            for (var context : contexts) context.close();
+            throw e;
+        }
+        return new Command(line, commands, session, contexts, keyword >= 0 || TIME_ALL && !line.isBlank());
+    }
+
+    private static Command failed(String line, Session session, String message, int status) throws IOException {
+        return new Command(line, List.of(new FailedCmd(message, status)), session, List.of(Context.of("")), false);
+    }
+
+    /**
+     * Reads a body for every {@code <<} of the line, each up to a line holding
+     * just its delimiter, or up to the end of the input with a warning.
+     */
+    private static List<String> heredocs(String line, Lines more) throws IOException {
+        var delimiters = Input.heredocs(line);
+        if (delimiters.isEmpty()) return List.of();
+
+        var bodies = new ArrayList<String>(delimiters.size());
+        for (var delimiter : delimiters) {
+            var body = new StringBuilder();
+            String next;
+            while ((next = more.next()) != null && !next.equals(delimiter))
+                body.append(next).append('\n');
+            if (next == null)
+                Output.TerminalWriter.STDERR.writeLine("warning: here-document delimited by end-of-file (wanted `%s')".formatted(delimiter));
+            bodies.add(body.toString());
+        }
+        return bodies;
+    }
+
+    /**
+     * Returns the end of a leading unquoted {@code time} keyword, or -1.
+     */
+    private static int timeKeyword(String line) {
+        var lexer = new Lexer().reset(line);
+        if (!lexer.next() || lexer.type() != Lexer.Type.WORD || lexer.quoted() || lexer.escaped()) return -1;
+        return "time".contentEquals(lexer.value()) ? lexer.end() : -1;
+    }
+
+    /**
+     * Records the finished line, while its writers are still open to be asked what they wrote.
+     */
+    private void journal(long start, Path directory, int status, boolean background) {
+        if (!line.isBlank())
+            session.journal().record(line.strip(), directory, commands, contexts, start, status, background);
     }
 
     @Override
     public void close() throws IOException {
-        context.close();
+        if (!detached) closeContexts();
     }
 
-    public static void initSuggest(Suggest suggest) {
+    private void closeContexts() throws IOException {
+        for (var context : contexts) context.close();
+    }
+
+    public static void initSuggest(Suggest suggest, Session session) throws IOException {
 
-        var builtinCmds = Registry.REGISTRY.keySet().stream();
-        var pathCommands = Utils.listPathExecutables();
+        Registry.REGISTRY.keySet().forEach(suggest::index);
+        suggest.index("time");
 
-        Stream.concat(builtinCmds, pathCommands).forEach(suggest::index);
+        var indexer = new Indexer(suggest);
+        session.subscribe("PATH", indexer::sync);
+        indexer.start(() -> session.variable("PATH"));
     }
 
     static class Registry {
 
-        static final Map<String, Cmd> REGISTRY = Map.of(
-                "exit", new ExitCmd(),
-                "echo", new EchoCmd(),
-                "type", new TypeCmd(),
-                "pwd", new PwdCmd(),
-                "cd", new CdCmd()
-        );
+        static final Map<String, Cmd> REGISTRY = withCoreutils(Map.ofEntries(
+                Map.entry("exit", new ExitCmd()),
+                Map.entry("echo", new EchoCmd()),
+                Map.entry("type", new TypeCmd()),
+                Map.entry("pwd", new PwdCmd()),
+                Map.entry("cd", new CdCmd()),
+                Map.entry("hash", new HashCmd()),
+                Map.entry("jobs", new JobsCmd()),
+                Map.entry("wait", new WaitCmd()),
+                Map.entry("fg", new FgCmd()),
+                Map.entry("export", new ExportCmd()),
+                Map.entry("unset", new UnsetCmd()),
+                Map.entry("tee", new TeeCmd()),
+                Map.entry("journal", new JournalCmd())
+        ));
+
+        private static Map<String, Cmd> withCoreutils(Map<String, Cmd> builtins) {
+            if (!Coreutils.ENABLED) return builtins;
+            var registry = new HashMap<>(builtins);
+            registry.putAll(Coreutils.UTILS);
+            return Map.copyOf(registry);
+        }
 
         static Cmd getCmd(String command) {
             return REGISTRY.get(command);
@@ -63,15 +267,16 @@ public final class Command implements AutoCloseable {
             return REGISTRY.containsKey(command);
         }
 
-        static Cmd resolve(Context context) {
+        static Cmd resolve(Context context, Session session) {
             if (context.input().isBlank()) return new DummyCmd();
             var command = context.input().command();
 
-            boolean isBuiltin = Registry.hasCmd(command);
-            if (isBuiltin) return Registry.getCmd(command);
+            var builtin = Registry.getCmd(command);
+            if (builtin instanceof Coreutils.Util util && !util.accepts(context.input().args())) builtin = null;
+            if (builtin != null) return builtin;
 
-            var pathCmd = Utils.getPathCmd(command);
-            if (pathCmd.isPresent()) return new RunCmd();
+            var pathCmd = session.resolver().resolve(command);
+            if (pathCmd.isPresent()) return new RunCmd(pathCmd.get());
 
             return new NotFoundCmd();
         }
@@ -79,14 +284,28 @@ public final class Command implements AutoCloseable {
 
     interface Cmd {
         void execute(Context context, Session session) throws IOException;
+
+        /**
+         * Whether the builtin reads {@link Context#stdin()}; others get an empty one.
+         */
+        default boolean readsStdin() {
+            return false;
+        }
+    }
+
+    /**
+     * The lines following a command, null at the end of the input.
+     */
+    @FunctionalInterface
+    public interface Lines {
+        String next() throws IOException;
     }
 
     static class PwdCmd implements Cmd {
 
         @Override
         public void execute(Context context, Session session) throws IOException {
-            Path curr = session.get("PWD", Paths.get("").toAbsolutePath());
-            context.output().send(curr.toAbsolutePath().toString());
+            context.output().send(session.pwd().toString());
         }
     }
 
@@ -94,8 +313,7 @@ public final class Command implements AutoCloseable {
 
         @Override
         public void execute(Context context, Session session) throws IOException {
-            Path curr = session.get("PWD", Paths.get("").toAbsolutePath());
-            Path next = curr.resolve(normalize(context.input().arg(1)));
+            Path next = session.pwd().resolve(normalize(context.input().arg(1)));
 
             if (Files.exists(next))
                 session.put("PWD", next.toRealPath().toAbsolutePath());
@@ -110,11 +328,259 @@ public final class Command implements AutoCloseable {
 
     static class RunCmd implements Cmd {
 
+        private final Path executable;
+
+        RunCmd(Path executable) {
+            this.executable = executable;
+        }
+
+        Path executable() {
+            return executable;
+        }
+
+        /**
+         * External commands are started by {@link Pipeline#start()}, never run as a builtin.
+         */
         @Override
-        public void execute(Context context, Session session) throws IOException {
-            var process = Runtime.getRuntime().exec(context.input().argsAsArray());
-            context.output().send(process.getInputStream());
-            context.output().error(process.getErrorStream());
+        public void execute(Context context, Session session) {
+            throw new UnsupportedOperationException("external commands run through a Pipeline");
+        }
+
+        /**
+         * Describes the child for either launcher. {@link Spawn} execs the resolved
+         * {@link #executable} with the command name as typed for argv[0]; the JDK
+         * launcher takes argv[0] as the program to exec, so it searches PATH again.
+         */
+        ProcessBuilder builder(Context context, Session session) {
+            var builder = new ProcessBuilder(context.input().argsAsArray())
+                    .directory(session.pwd().toFile())
+                    .redirectOutput(context.output().stdout().redirect())
+                    .redirectError(context.output().stderr().redirect());
+            var stdin = context.input().stdin();
+            if (stdin != null && stdin.type() == Input.RedirectType.REDIRECT_STDIN)
+                builder.redirectInput(session.pwd().resolve(stdin.target()).toFile());
+            return builder;
+        }
+    }
+
+    /**
+     * Runs the stages of {@code a | b | c} concurrently.
+     * <p>
+     * Consecutive external stages are started with {@link ProcessBuilder#startPipeline},
+     * so the data between them flows through OS pipes and never enters the JVM;
+     * file redirects of external stages are attached to the child the same way.
+     * Builtin stages run on virtual threads and write straight into the stdin
+     * of the next process. The exit status is taken from the last stage.
+     * <p>
+     * The first stage reads the shell's stdin, or nothing when in the background.
+     * A stage which redirects its stdin starts a new group: a file is attached to
+     * the child like an output redirect, while here-strings and here-documents
+     * are written into a pipe by a virtual thread of their own, alongside the
+     * pumps, so a child can't block on a full stdout before it has read them.
+     */
+    static class Pipeline {
+
+        private static final int FEED_CHUNK = 64 * 1024;
+        private static final File NULL_FILE = new File("/dev/null");
+
+        /**
+         * The shell's stdin for builtins, which must not close it.
+         */
+        private static final InputStream SHELL_STDIN = new FilterInputStream(new FileInputStream(FileDescriptor.in)) {
+            @Override
+            public void close() {
+            }
+        };
+
+        private final List<Cmd> commands;
+        private final List<Context> contexts;
+        private final Session session;
+
+        Pipeline(List<Cmd> commands, List<Context> contexts, Session session) {
+            this.commands = commands;
+            this.contexts = contexts;
+            this.session = session;
+        }
+
+        /**
+         * Runs builtin stages, pumps output and waits for every process
+         * started by {@link #start()}.
+         */
+        int supervise(List<Process> started) throws IOException {
+            var processes = started.toArray(Process[]::new);
+            int last = commands.size() - 1;
+
+            try (var pumps = Executors.newVirtualThreadPerTaskExecutor()) {
+                var tasks = new ArrayList<Future<?>>();
+                Future<Integer> status = null;
+                InputStream handoff = null;
+                for (int i = 0; i <= last; i++) {
+                    var context = contexts.get(i);
+                    var output = context.output();
+                    var process = processes[i];
+                    var next = i < last ? processes[i + 1] : null;
+                    // a successor which reads its own stdin gets nothing from this stage
+                    var ignored = i < last && contexts.get(i + 1).input().redirectsStdin();
+                    var piped = i < last && !context.input().redirectsStdout();
+                    // a builtin successor which reads stdin, like tee, gets this stage's output
+                    var reader = piped && !ignored && next == null && commands.get(i + 1).readsStdin();
+
+                    if (process == null) {
+                        var command = commands.get(i);
+                        var pipe = reader ? Pipe.open() : null;
+                        var sink = !piped ? null
+                                : pipe != null ? new Output.StreamWriter(Channels.newOutputStream(pipe.sink()))
+                                : next == null || ignored ? new Output.StreamWriter(OutputStream.nullOutputStream())
+                                : new Output.StreamWriter(next.getOutputStream());
+                        var stdin = command.readsStdin() ? stdin(i, processes, handoff) : InputStream.nullInputStream();
+                        handoff = pipe != null ? Channels.newInputStream(pipe.source()) : null;
+                        var target = new Context(context.input(), sink == null ? output : new Output(sink, output.stderr()), stdin);
+                        var task = pumps.submit(() -> {
+                            try (stdin) {
+                                return session.stage(command, target);
+                            } finally {
+                                if (sink != null) closeQuietly(sink);
+                            }
+                        });
+                        tasks.add(task);
+                        if (i == last) status = task;
+                        continue;
+                    }
+
+                    if (process instanceof Spawn.FailedProcess failed) {
+                        output.error(failed.message());
+                        continue;
+                    }
+                    if (output.stderr().redirect() == PIPE) {
+                        tasks.add(pumps.submit(() -> {
+                            output.error(process.getErrorStream());
+                            return null;
+                        }));
+                    }
+                    if (!piped && output.stdout().redirect() == PIPE) {
+                        tasks.add(pumps.submit(() -> {
+                            output.send(process.getInputStream());
+                            return null;
+                        }));
+                    } else if (next == null && !reader || ignored) {
+                        // nobody reads this stdout, so let the writer see a broken pipe
+                        process.getInputStream().close();
+                    }
+                    var stdin = context.input().stdin();
+                    if (stdin != null && stdin.text() != null) {
+                        tasks.add(pumps.submit(() -> {
+                            feed(process.getOutputStream(), stdin.text());
+                            return null;
+                        }));
+                    } else if (i > 0 && contexts.get(i - 1).input().redirectsStdout()) {
+                        process.getOutputStream().close();
+                    }
+                }
+
+                for (var process : processes)
+                    if (process != null) process.waitFor();
+                for (var task : tasks)
+                    task.get();
+
+                return processes[last] != null ? processes[last].exitValue() : status.get();
+            } catch (InterruptedException e) {
+                for (var process : processes)
+                    if (process != null) process.destroy();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Starts every external stage; a stage that redirects its stdout
+         * breaks the OS pipe chain, as its successor reads nothing.
+         */
+        List<Process> start() throws IOException {
+            var processes = new Process[commands.size()];
+            for (int i = 0; i < commands.size(); ) {
+                if (!(commands.get(i) instanceof RunCmd)) {
+                    i++;
+                    continue;
+                }
+                var builders = new ArrayList<ProcessBuilder>();
+                var executables = new ArrayList<Path>();
+                int j = i;
+                do {
+                    var command = (RunCmd) commands.get(j);
+                    builders.add(command.builder(contexts.get(j), session));
+                    executables.add(command.executable());
+                    j++;
+                } while (j < commands.size() && commands.get(j) instanceof RunCmd
+                        && !contexts.get(j - 1).input().redirectsStdout() && !contexts.get(j).input().redirectsStdin());
+
+                var input = contexts.getFirst().input();
+                if (i == 0 && !input.redirectsStdin())
+                    builders.getFirst().redirectInput(input.background() ? Redirect.from(NULL_FILE) : Redirect.INHERIT);
+
+                var started = launch(builders, executables);
+                for (int k = 0; k < started.size(); k++)
+                    processes[i + k] = started.get(k);
+                i = j;
+            }
+            // builtin stages have no process, keep their slots as nulls
+            return Arrays.asList(processes);
+        }
+
+        /**
+         * Starts the group with {@code posix_spawn} where it is available, otherwise
+         * through the JDK; both see the same cached environment snapshot.
+         */
+        private List<Process> launch(List<ProcessBuilder> builders, List<Path> executables) throws IOException {
+            var environment = session.environment();
+            if (Spawn.available()) return Spawn.startPipeline(builders, executables, environment);
+
+            builders.forEach(environment::applyTo);
+            return ProcessBuilder.startPipeline(builders);
+        }
+
+        /**
+         * The stdin of a builtin stage: its redirect, the output of the previous
+         * stage, or the shell's own stdin for a foreground first stage.
+         */
+        private InputStream stdin(int i, Process[] processes, InputStream handoff) throws IOException {
+            var input = contexts.get(i).input();
+            var redirect = input.stdin();
+            if (redirect != null && redirect.text() != null)
+                return new ByteArrayInputStream(redirect.text().getBytes(UTF_8));
+            if (redirect != null)
+                return Files.newInputStream(session.pwd().resolve(redirect.target()));
+            if (i == 0)
+                return input.background() ? InputStream.nullInputStream() : SHELL_STDIN;
+            if (contexts.get(i - 1).input().redirectsStdout())
+                return InputStream.nullInputStream();
+            if (processes[i - 1] != null)
+                return processes[i - 1].getInputStream();
+            return handoff != null ? handoff : InputStream.nullInputStream();
+        }
+
+        /**
+         * Writes the text to the child's stdin in chunks and closes it; a child
+         * which exits without reading all of it just ends the writing.
+         */
+        private static void feed(OutputStream stdin, String text) {
+            var bytes = text.getBytes(UTF_8);
+            try (stdin) {
+                for (int offset = 0; offset < bytes.length; offset += FEED_CHUNK)
+                    stdin.write(bytes, offset, Math.min(FEED_CHUNK, bytes.length - offset));
+            } catch (IOException e) {
+                // broken pipe, the command is done with its input
+            }
+        }
+
+        private static void closeQuietly(Output.Writer writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // the reading stage has exited already
+            }
         }
     }
 
@@ -125,13 +591,18 @@ public final class Command implements AutoCloseable {
 
             var command = context.input().arg(1);
 
+            if (command.equals("time")) {
+                context.output().send("time is a shell keyword");
+                return;
+            }
+
             var isBuiltin = Registry.hasCmd(command);
             if (isBuiltin) {
                 context.output().send("%s is a shell builtin".formatted(command));
                 return;
             }
 
-            var pathCmd = Utils.getPathCmd(command);
+            var pathCmd = session.resolver().resolve(command);
             if (pathCmd.isPresent()) {
                 context.output().send("%s is %s".formatted(command, pathCmd.get().toAbsolutePath()));
                 return;
@@ -146,6 +617,27 @@ public final class Command implements AutoCloseable {
         @Override
         public void execute(Context context, Session session) throws IOException {
             context.output().error("%s: command not found".formatted(context.input().line().trim()));
+            session.put("?", 127);
+        }
+    }
+
+    /**
+     * Reports a line which could not be turned into a command.
+     */
+    static class FailedCmd implements Cmd {
+
+        private final String message;
+        private final int status;
+
+        FailedCmd(String message, int status) {
+            this.message = message;
+            this.status = status;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            context.output().error(message);
+            session.put("?", status);
         }
     }
 
@@ -153,7 +645,7 @@ public final class Command implements AutoCloseable {
 
         @Override
         public void execute(Context context, Session session) {
-            int status = context.input().argAsInt(1);
+            int status = context.input().args().size() > 1 ? context.input().argAsInt(1) : session.get("?", 0);
             System.exit(status);
         }
     }
@@ -162,94 +654,290 @@ public final class Command implements AutoCloseable {
 
         @Override
         public void execute(Context context, Session session) throws IOException {
-            var content = render(context.input().argsAsString());
-            context.output().send(content);
-        }
-
-        private String render(String input) {
-            boolean sQuotes = false, dQuotes = false, escape = false, spaced = false;
-            char[] data = input.toCharArray();
-            var sb = new StringBuilder();
-            for (char c : data) {
-                switch (c) {
-                    case ' ': {
-                        if (!sQuotes && !dQuotes && !escape) {
-                            if (!spaced) {
-                                sb.append(c);
-                                spaced = true;
+            var args = context.input().args();
+            context.output().send(String.join(" ", args.subList(1, args.size())));
+        }
+    }
+
+    /**
+     * Copies stdin to stdout and to every file, through one {@link Output.FanOutWriter}.
+     */
+    static class TeeCmd implements Cmd {
+
+        private static final int CHUNK = 64 * 1024;
+
+        @Override
+        public boolean readsStdin() {
+            return true;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var output = context.output();
+            boolean append = false, options = true, failed = false;
+            var files = new ArrayList<String>();
+            for (var arg : context.input().args().subList(1, context.input().args().size())) {
+                if (options && arg.equals("--")) {
+                    options = false;
+                } else if (options && arg.startsWith("-") && arg.length() > 1) {
+                    for (char flag : arg.substring(1).toCharArray()) {
+                        switch (flag) {
+                            case 'a' -> append = true;
+                            case 'i' -> {
+                                // interrupts don't reach builtins anyway
+                            }
+                            default -> {
+                                output.error("tee: invalid option -- '%c'".formatted(flag));
+                                session.put("?", 1);
+                                return;
                             }
-                        } else {
-                            sb.append(c);
                         }
-                        escape = false;
-                        break;
-                    }
-                    case '"': {
-                        if (sQuotes || escape) {
-                            sb.append(c);
-                        } else dQuotes = !dQuotes;
-                        escape = false;
-                        break;
                     }
-                    case '\'': {
-                        if (dQuotes || escape) {
-                            sb.append(c);
-                        } else sQuotes = !sQuotes;
-                        escape = false;
-                        break;
+                } else {
+                    files.add(arg);
+                }
+            }
+
+            var writers = new ArrayList<Output.Writer>();
+            try {
+                for (var file : files) {
+                    try {
+                        writers.add(new Output.RedirectWriter(session.pwd().resolve(file), append));
+                    } catch (FileSystemException e) {
+                        output.error("tee: %s: %s".formatted(file, Coreutils.reason(e)));
+                        failed = true;
                     }
-                    case '\\': {
-                        if (dQuotes) {
-                            if (escape) sb.append('\\');
-                            escape = !escape;
-                        } else {
-                            if (escape || sQuotes) sb.append('\\');
-                            if (!sQuotes) escape = !escape;
+                }
+                var sinks = new ArrayList<Output.Writer>(writers.size() + 1);
+                sinks.add(output.stdout());
+                sinks.addAll(writers);
+                var tee = new Output.FanOutWriter(sinks);
+
+                var buffer = new byte[CHUNK];
+                int n;
+                while ((n = context.stdin().read(buffer)) != -1) tee.write(buffer, 0, n);
+            } finally {
+                // stdout belongs to the context
+                for (var writer : writers) writer.close();
+            }
+            if (failed) session.put("?", 1);
+        }
+    }
+
+    static class HashCmd implements Cmd {
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var resolver = session.resolver();
+            var args = context.input().args();
+
+            if (args.size() == 1) {
+                list(context, resolver);
+                return;
+            }
+
+            switch (args.get(1)) {
+                case "-r" -> resolver.clear();
+                case "-s" -> context.output().send("hits: %d, misses: %d".formatted(resolver.hits(), resolver.misses()));
+                case "-d" -> {
+                    for (var name : args.subList(2, args.size()))
+                        if (!resolver.forget(name))
+                            context.output().error("hash: %s: not found".formatted(name));
+                }
+                default -> {
+                    for (var name : args.subList(1, args.size()))
+                        if (!Registry.hasCmd(name) && resolver.hash(name).isEmpty())
+                            context.output().error("hash: %s: not found".formatted(name));
+                }
+            }
+        }
+
+        private void list(Context context, Resolver resolver) throws IOException {
+            var entries = resolver.entries();
+            if (entries.isEmpty()) {
+                context.output().send("hash: hash table empty");
+                return;
+            }
+            context.output().send("hits\tcommand");
+            for (var entry : entries.values())
+                context.output().send("%4d\t%s".formatted(entry.hits.get(), entry.path));
+        }
+    }
+
+    static class JobsCmd implements Cmd {
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            for (var job : session.jobs().list())
+                context.output().send("[%d]  %-10s %s".formatted(job.id, job.state(), job.line));
+        }
+    }
+
+    /**
+     * Prints the journal: {@code -n N} the last N records, {@code -f} failures
+     * only, {@code -g TEXT} lines containing the text, {@code -v} the pid of
+     * the shell and the binaries run as well.
+     */
+    static class JournalCmd implements Cmd {
+
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .withZone(ZoneId.systemDefault());
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var output = context.output();
+            var args = context.input().args();
+            int last = Integer.MAX_VALUE;
+            boolean failures = false, verbose = false;
+            String text = null;
+            for (int i = 1; i < args.size(); i++) {
+                var arg = args.get(i);
+                switch (arg) {
+                    case "-f" -> failures = true;
+                    case "-v" -> verbose = true;
+                    case "-n", "-g" -> {
+                        if (++i == args.size()) {
+                            output.error("journal: %s: option requires an argument".formatted(arg));
+                            session.put("?", 2);
+                            return;
+                        }
+                        if (arg.equals("-g")) text = args.get(i);
+                        else if ((last = count(args.get(i))) < 0) {
+                            output.error("journal: %s: numeric argument required".formatted(args.get(i)));
+                            session.put("?", 2);
+                            return;
                         }
-                        break;
                     }
-                    default: {
-                        sb.append(c);
-                        spaced = false;
-                        escape = false;
-                        break;
+                    default -> {
+                        output.error("journal: %s: invalid option".formatted(arg));
+                        session.put("?", 2);
+                        return;
                     }
                 }
             }
-            return sb.toString();
+
+            var matching = new ArrayList<Journal.Entry>();
+            for (var entry : session.journal().entries())
+                if ((!failures || entry.status() != 0) && (text == null || entry.line().contains(text)))
+                    matching.add(entry);
+
+            for (var entry : matching.subList(Math.max(0, matching.size() - last), matching.size())) {
+                output.send("%5d  %s %8.3fs %4s %9s %9s  %s  %s%s".formatted(entry.sequence(),
+                        TIME.format(Instant.ofEpochMilli(entry.start())), (entry.end() - entry.start()) / 1000.0,
+                        entry.status() < 0 ? "-" : entry.status(), bytes(entry.out()), bytes(entry.err()),
+                        entry.directory(), entry.line(), entry.truncated() ? "..." : ""));
+                if (verbose)
+                    output.send("%7s  pid %d  %s".formatted("", entry.pid(), entry.binaries()));
+            }
+        }
+
+        private static int count(String arg) {
+            try {
+                return Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static String bytes(long count) {
+            return count < 0 ? "-" : Long.toString(count);
         }
     }
 
-    static class DummyCmd implements Cmd {
+    static class WaitCmd implements Cmd {
+
         @Override
-        public void execute(Context context, Session session) {
+        public void execute(Context context, Session session) throws IOException {
+            var jobs = session.jobs();
+            var args = context.input().args();
+
+            if (args.size() == 1) {
+                for (var job : jobs.list()) {
+                    session.put("?", job.await());
+                    jobs.remove(job);
+                }
+                return;
+            }
+            for (var spec : args.subList(1, args.size())) {
+                var job = jobs.find(spec);
+                if (job.isEmpty()) {
+                    context.output().error("wait: %s: no such job".formatted(spec));
+                    session.put("?", 127);
+                    continue;
+                }
+                session.put("?", job.get().await());
+                jobs.remove(job.get());
+            }
         }
     }
 
-    static class Utils {
-        static Stream<String> listPathExecutables() {
-            return Arrays.stream(System.getenv("PATH").split(":"))
-                    .map(Paths::get)
-                    .flatMap(Utils::list)
-                    .filter(Files::isExecutable)
-                    .map(Path::getFileName)
-                    .map(Path::toString);
+    static class FgCmd implements Cmd {
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var spec = context.input().args().size() > 1 ? context.input().arg(1) : null;
+            var job = session.jobs().find(spec);
+            if (job.isEmpty()) {
+                context.output().error("fg: %s: no such job".formatted(spec == null ? "current" : spec));
+                session.put("?", 1);
+                return;
+            }
+            context.output().send(job.get().line);
+            Output.TerminalWriter.flushAll();
+            session.put("?", job.get().await());
+            session.jobs().remove(job.get());
         }
+    }
+
+    static class ExportCmd implements Cmd {
 
-        static Optional<Path> getPathCmd(String command) {
-            return Arrays.stream(System.getenv("PATH").split(":"))
-                    .map(Paths::get)
-                    .map(p -> p.resolve(command))
-                    .filter(Files::exists)
-                    .findFirst();
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var args = context.input().args();
+            if (args.size() == 1 || args.get(1).equals("-p")) {
+                for (var variable : session.exported().entrySet())
+                    context.output().send("declare -x %s=\"%s\"".formatted(variable.getKey(), variable.getValue()));
+                return;
+            }
+            for (var arg : args.subList(1, args.size())) {
+                int assign = arg.indexOf('=');
+                var name = assign < 0 ? arg : arg.substring(0, assign);
+                if (!isName(name)) {
+                    context.output().error("export: `%s': not a valid identifier".formatted(arg));
+                    session.put("?", 1);
+                    continue;
+                }
+                if (assign >= 0) session.put(name, arg.substring(assign + 1));
+                session.export(name);
+            }
         }
+    }
 
-        static Stream<Path> list(Path directory) {
-            try {
-                return Files.list(directory);
-            } catch (IOException e) {
-                return Stream.empty();
+    static class UnsetCmd implements Cmd {
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            for (var name : context.input().args().subList(1, context.input().args().size())) {
+                if (!isName(name)) {
+                    context.output().error("unset: `%s': not a valid identifier".formatted(name));
+                    session.put("?", 1);
+                    continue;
+                }
+                session.remove(name);
             }
         }
     }
+
+    private static boolean isName(String name) {
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) return false;
+        for (int i = 0; i < name.length(); i++)
+            if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i) != '_') return false;
+        return true;
+    }
+
+    static class DummyCmd implements Cmd {
+        @Override
+        public void execute(Context context, Session session) {
+        }
+    }
 }
@@ -1,12 +1,38 @@
 package shell;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 
-record Context(Input input, Output output) implements AutoCloseable {
+/**
+ * What a command runs with. The stdin stream is only handed to builtins which
+ * {@link Command.Cmd#readsStdin() read it}, and is owned by whoever passes it.
+ */
+record Context(Input input, Output output, InputStream stdin) implements AutoCloseable {
+
+    Context(Input input, Output output) {
+        this(input, output, InputStream.nullInputStream());
+    }
 
     static Context of(String line) throws IOException {
-        var input = Input.of(line);
-        var output = Output.of(input);
+        return of(Input.of(line));
+    }
+
+    static Context of(Input input) throws IOException {
+        return of(input, Path.of(""));
+    }
+
+    /**
+     * Opens the redirect targets of the input relative to the given directory.
+     * Files read with {@code <} are only checked here: an external command gets
+     * them attached as its stdin, and builtins don't read stdin.
+     */
+    static Context of(Input input, Path directory) throws IOException {
+        for (var redirect : input.redirects())
+            if (redirect.type() == Input.RedirectType.REDIRECT_STDIN)
+                FileChannel.open(directory.resolve(redirect.target())).close();
+        var output = Output.of(input, directory);
         return new Context(input, output);
     }
 
@@ -0,0 +1,485 @@
+package shell;
+
+import shell.Command.Cmd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+/**
+ * In-process {@code cat}, {@code head}, {@code tail}, {@code wc} and {@code ls},
+ * enabled with {@code -Dshell.coreutils=true}.
+ * <p>
+ * File contents are sent with {@link Output.Writer#transfer}, lines are found
+ * in memory-mapped windows and {@code tail} reads backwards from the end, so
+ * slicing a large log costs no process and no full read. Builtins get no
+ * stdin, so a command which would read it, or which uses an option not
+ * handled here, runs the system binary as before.
+ */
+final class Coreutils {
+
+    static final boolean ENABLED = Boolean.getBoolean("shell.coreutils");
+
+    static final Map<String, Util> UTILS = Map.of(
+            "cat", new CatCmd(),
+            "head", new HeadCmd(),
+            "tail", new TailCmd(),
+            "wc", new WcCmd(),
+            "ls", new LsCmd()
+    );
+
+    /**
+     * Size of the mapped window lines are counted in.
+     */
+    private static final long WINDOW = 64L << 20;
+    private static final int BLOCK = 64 << 10;
+
+    private Coreutils() {
+    }
+
+    interface Util extends Cmd {
+        /**
+         * Whether the arguments can be handled in process.
+         */
+        boolean accepts(List<String> args);
+    }
+
+    /**
+     * Single-letter flags, the values of options which take one, and the operands.
+     */
+    record Args(String flags, Map<Character, Long> values, List<String> files) {
+
+        boolean has(char flag) {
+            return flags.indexOf(flag) >= 0;
+        }
+
+        long value(char option, long defaultValue) {
+            return values.getOrDefault(option, defaultValue);
+        }
+
+        /**
+         * Parses GNU style options, {@code -n 5}, {@code -n5} and {@code -5} for {@code -n};
+         * returns null for anything else, a {@code -} operand, or no operands when required.
+         */
+        static Args parse(List<String> args, String flags, String valued, boolean operands) {
+            var set = new StringBuilder();
+            var values = new HashMap<Character, Long>();
+            var files = new ArrayList<String>();
+            boolean options = true;
+            for (int i = 1; i < args.size(); i++) {
+                var arg = args.get(i);
+                if (!options || !arg.startsWith("-") || arg.length() == 1) {
+                    if (arg.equals("-")) return null;
+                    files.add(arg);
+                    continue;
+                }
+                if (arg.equals("--")) {
+                    options = false;
+                    continue;
+                }
+                if (!valued.isEmpty() && Character.isDigit(arg.charAt(1))) {
+                    var number = number(arg.substring(1));
+                    if (number < 0) return null;
+                    values.put(valued.charAt(0), number);
+                    continue;
+                }
+                for (int j = 1; j < arg.length(); j++) {
+                    char c = arg.charAt(j);
+                    if (valued.indexOf(c) >= 0) {
+                        var value = j + 1 < arg.length() ? arg.substring(j + 1) : i + 1 < args.size() ? args.get(++i) : "";
+                        var number = number(value);
+                        if (number < 0) return null;
+                        values.put(c, number);
+                        break;
+                    }
+                    if (flags.indexOf(c) < 0) return null;
+                    set.append(c);
+                }
+            }
+            if (operands && files.isEmpty()) return null;
+            return new Args(set.toString(), values, files);
+        }
+
+        private static long number(String value) {
+            if (value.isEmpty() || value.length() > 18) return -1;
+            for (int i = 0; i < value.length(); i++)
+                if (!Character.isDigit(value.charAt(i))) return -1;
+            return Long.parseLong(value);
+        }
+    }
+
+    static class CatCmd implements Util {
+
+        @Override
+        public boolean accepts(List<String> args) {
+            return Args.parse(args, "", "", true) != null;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var output = context.output();
+            boolean failed = false;
+            for (var file : Args.parse(context.input().args(), "", "", true).files()) {
+                try (var channel = open(session, file)) {
+                    if (Files.isRegularFile(session.pwd().resolve(file)))
+                        output.stdout().transfer(channel, 0, channel.size());
+                    else
+                        output.send(Channels.newInputStream(channel));
+                } catch (IOException e) {
+                    output.error("cat: %s: %s".formatted(file, reason(e)));
+                    failed = true;
+                }
+            }
+            if (failed) session.put("?", 1);
+        }
+    }
+
+    static class HeadCmd implements Util {
+
+        @Override
+        public boolean accepts(List<String> args) {
+            return Args.parse(args, "qv", "nc", true) != null;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var args = Args.parse(context.input().args(), "qv", "nc", true);
+            var output = context.output();
+            boolean headers = args.has('v') || !args.has('q') && args.files().size() > 1;
+            boolean failed = false;
+
+            for (int i = 0; i < args.files().size(); i++) {
+                var file = args.files().get(i);
+                try (var channel = open(session, file)) {
+                    if (Files.isDirectory(session.pwd().resolve(file))) throw new IOException("Is a directory");
+                    if (headers) output.send((i > 0 ? "\n" : "") + "==> " + file + " <==");
+
+                    long size = channel.size();
+                    if (size == 0) {
+                        // no known size, like a /proc file: read it from the start
+                        if (args.values().containsKey('c')) {
+                            var bytes = Channels.newInputStream(channel).readNBytes((int) Math.min(Integer.MAX_VALUE, args.value('c', 0)));
+                            output.stdout().write(bytes, 0, bytes.length);
+                        } else {
+                            head(channel, args.value('n', 10), output.stdout());
+                        }
+                        continue;
+                    }
+                    long end = args.values().containsKey('c')
+                            ? Math.min(size, args.value('c', 0))
+                            : afterLines(channel, args.value('n', 10));
+                    output.stdout().transfer(channel, 0, end);
+                } catch (NoSuchFileException | AccessDeniedException e) {
+                    output.error("head: cannot open '%s' for reading: %s".formatted(file, reason(e)));
+                    failed = true;
+                } catch (IOException e) {
+                    output.error("head: error reading '%s': %s".formatted(file, reason(e)));
+                    failed = true;
+                }
+            }
+            if (failed) session.put("?", 1);
+        }
+
+        /**
+         * Returns the offset right after the given number of lines, scanning mapped windows.
+         */
+        private static long afterLines(FileChannel channel, long lines) throws IOException {
+            long size = channel.size();
+            if (lines == 0) return 0;
+            for (long position = 0; position < size; position += WINDOW) {
+                var window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                for (int i = 0, n = window.limit(); i < n; i++)
+                    if (window.get(i) == '\n' && --lines == 0) return position + i + 1;
+            }
+            return size;
+        }
+
+        /**
+         * Copies the leading lines of a file whose size is unknown.
+         */
+        private static void head(FileChannel channel, long lines, Output.Writer writer) throws IOException {
+            var buffer = ByteBuffer.allocate(BLOCK);
+            while (lines > 0 && channel.read(buffer.clear()) > 0) {
+                int i = 0;
+                for (int n = buffer.position(); i < n && lines > 0; i++)
+                    if (buffer.get(i) == '\n') lines--;
+                writer.write(buffer.array(), 0, i);
+            }
+        }
+    }
+
+    static class TailCmd implements Util {
+
+        @Override
+        public boolean accepts(List<String> args) {
+            return Args.parse(args, "qv", "nc", true) != null;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var args = Args.parse(context.input().args(), "qv", "nc", true);
+            var output = context.output();
+            boolean headers = args.has('v') || !args.has('q') && args.files().size() > 1;
+            boolean failed = false;
+
+            for (int i = 0; i < args.files().size(); i++) {
+                var file = args.files().get(i);
+                try (var channel = open(session, file)) {
+                    if (Files.isDirectory(session.pwd().resolve(file))) throw new IOException("Is a directory");
+                    if (headers) output.send((i > 0 ? "\n" : "") + "==> " + file + " <==");
+
+                    if (channel.size() == 0) {
+                        // no known size, like a /proc file: read it whole
+                        var bytes = Channels.newInputStream(channel).readAllBytes();
+                        int start = args.values().containsKey('c')
+                                ? (int) Math.max(0, bytes.length - args.value('c', 0))
+                                : start(bytes, args.value('n', 10));
+                        output.stdout().write(bytes, start, bytes.length - start);
+                        continue;
+                    }
+                    long size = channel.size();
+                    long start = args.values().containsKey('c')
+                            ? Math.max(0, size - args.value('c', 0))
+                            : beforeLines(channel, args.value('n', 10));
+                    output.stdout().transfer(channel, start, size - start);
+                } catch (NoSuchFileException | AccessDeniedException e) {
+                    output.error("tail: cannot open '%s' for reading: %s".formatted(file, reason(e)));
+                    failed = true;
+                } catch (IOException e) {
+                    output.error("tail: error reading '%s': %s".formatted(file, reason(e)));
+                    failed = true;
+                }
+            }
+            if (failed) session.put("?", 1);
+        }
+
+        /**
+         * Reads blocks backwards from the end until enough line breaks are seen,
+         * so only the tail of the file is ever read.
+         */
+        private static long beforeLines(FileChannel channel, long lines) throws IOException {
+            long size = channel.size();
+            if (lines == 0) return size;
+            var buffer = ByteBuffer.allocate(BLOCK);
+            boolean last = true;
+            for (long end = size; end > 0; ) {
+                long from = Math.max(0, end - BLOCK);
+                buffer.clear().limit((int) (end - from));
+                while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) ;
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    // the break ending the last line doesn't start another one
+                    if (buffer.get(i) != '\n' || last && from + i == size - 1) continue;
+                    if (--lines == 0) return from + i + 1;
+                }
+                last = false;
+                end = from;
+            }
+            return 0;
+        }
+
+        private static int start(byte[] bytes, long lines) {
+            if (lines == 0) return bytes.length;
+            for (int i = bytes.length - 1; i >= 0; i--) {
+                if (bytes[i] != '\n' || i == bytes.length - 1) continue;
+                if (--lines == 0) return i + 1;
+            }
+            return 0;
+        }
+    }
+
+    static class WcCmd implements Util {
+
+        @Override
+        public boolean accepts(List<String> args) {
+            return Args.parse(args, "lwc", "", true) != null;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var args = Args.parse(context.input().args(), "lwc", "", true);
+            var output = context.output();
+            boolean all = args.flags().isEmpty();
+            boolean lines = all || args.has('l'), words = all || args.has('w'), bytes = all || args.has('c');
+            boolean failed = false;
+
+            // GNU wc stats every file first and pads to the digits of the total size of
+            // regular files, to 7 with any other kind of file, and not for one count of one file
+            long regular = 0;
+            int minimum = 1;
+            boolean first = true, stated = true;
+            for (var file : args.files()) {
+                try {
+                    var attributes = Files.readAttributes(session.pwd().resolve(file), BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) regular += attributes.size();
+                    else minimum = 7;
+                } catch (IOException e) {
+                    if (first) stated = false;
+                }
+                first = false;
+            }
+            int fields = (lines ? 1 : 0) + (words ? 1 : 0) + (bytes ? 1 : 0);
+            int width = args.files().size() == 1 && fields == 1 || !stated
+                    ? 1 : Math.max(minimum, Long.toString(regular).length());
+
+            var total = new long[3];
+            for (var file : args.files()) {
+                var count = new long[3];
+                if (Files.isDirectory(session.pwd().resolve(file))) {
+                    output.error("wc: %s: Is a directory".formatted(file));
+                    failed = true;
+                } else {
+                    try (var channel = open(session, file)) {
+                        count(channel, count, lines, words);
+                    } catch (IOException e) {
+                        output.error("wc: %s: %s".formatted(file, reason(e)));
+                        failed = true;
+                        continue;
+                    }
+                }
+                for (int k = 0; k < 3; k++) total[k] += count[k];
+                output.send(format(count, lines, words, bytes, width) + " " + file);
+            }
+            if (args.files().size() > 1) output.send(format(total, lines, words, bytes, width) + " total");
+            if (failed) session.put("?", 1);
+        }
+
+        /**
+         * Counts lines, words and bytes in mapped windows, or with plain reads for
+         * files with no known size; bytes of a regular file come from its size alone.
+         */
+        private static void count(FileChannel channel, long[] count, boolean lines, boolean words) throws IOException {
+            long size = channel.size();
+            if (!lines && !words && size > 0) {
+                count[2] = size;
+                return;
+            }
+            var chunk = new byte[BLOCK];
+            boolean word = false;
+            if (size > 0) {
+                for (long position = 0; position < size; position += WINDOW) {
+                    var window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                    while (window.hasRemaining()) {
+                        int n = Math.min(chunk.length, window.remaining());
+                        window.get(chunk, 0, n);
+                        word = count(chunk, n, count, words, word);
+                    }
+                }
+            } else {
+                var buffer = ByteBuffer.wrap(chunk);
+                int n;
+                while ((n = channel.read(buffer.clear())) > 0) word = count(chunk, n, count, words, word);
+            }
+        }
+
+        /**
+         * Counts a chunk copied out of the window; a plain array scan is what the JIT
+         * vectorizes, and without {@code -w} only line breaks are looked at.
+         */
+        private static boolean count(byte[] chunk, int length, long[] count, boolean words, boolean word) {
+            long lines = 0, started = 0;
+            if (words) {
+                for (int i = 0; i < length; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n') lines++;
+                    boolean space = b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0b || b == '\f';
+                    if (!space && !word) started++;
+                    word = !space;
+                }
+            } else {
+                for (int i = 0; i < length; i++)
+                    if (chunk[i] == '\n') lines++;
+            }
+            count[0] += lines;
+            count[1] += started;
+            count[2] += length;
+            return word;
+        }
+
+        private static String format(long[] count, boolean lines, boolean words, boolean bytes, int width) {
+            var number = " %" + width + "d";
+            var line = new StringBuilder();
+            if (lines) line.append(number.formatted(count[0]));
+            if (words) line.append(number.formatted(count[1]));
+            if (bytes) line.append(number.formatted(count[2]));
+            return line.substring(1);
+        }
+    }
+
+    /**
+     * Lists one name per line, sorted in the byte order of the C locale.
+     */
+    static class LsCmd implements Util {
+
+        @Override
+        public boolean accepts(List<String> args) {
+            return Args.parse(args, "1aA", "", false) != null;
+        }
+
+        @Override
+        public void execute(Context context, Session session) throws IOException {
+            var args = Args.parse(context.input().args(), "1aA", "", false);
+            var output = context.output();
+            var operands = args.files().isEmpty() ? List.of(".") : args.files().stream().sorted().toList();
+            boolean failed = false;
+
+            var directories = new ArrayList<String>();
+            var files = new ArrayList<String>();
+            for (var operand : operands) {
+                var path = session.pwd().resolve(operand);
+                if (Files.isDirectory(path)) directories.add(operand);
+                else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) files.add(operand);
+                else {
+                    output.error("ls: cannot access '%s': No such file or directory".formatted(operand));
+                    failed = true;
+                }
+            }
+            for (var file : files) output.send(file);
+
+            boolean headers = operands.size() > 1;
+            for (int i = 0; i < directories.size(); i++) {
+                var directory = directories.get(i);
+                if (headers) output.send((i > 0 || !files.isEmpty() ? "\n" : "") + directory + ":");
+                try (Stream<Path> entries = Files.list(session.pwd().resolve(directory))) {
+                    var names = new ArrayList<String>();
+                    if (args.has('a')) names.addAll(List.of(".", ".."));
+                    entries.map(entry -> entry.getFileName().toString())
+                            .filter(name -> args.has('a') || args.has('A') || !name.startsWith("."))
+                            .forEach(names::add);
+                    names.sort(null);
+                    for (var name : names) output.send(name);
+                } catch (AccessDeniedException e) {
+                    output.error("ls: cannot open directory '%s': Permission denied".formatted(directory));
+                    failed = true;
+                }
+            }
+            if (failed) session.put("?", 2);
+        }
+    }
+
+    private static FileChannel open(Session session, String file) throws IOException {
+        return FileChannel.open(session.pwd().resolve(file));
+    }
+
+    static String reason(IOException e) {
+        return switch (e) {
+            case NoSuchFileException ignored -> "No such file or directory";
+            case AccessDeniedException ignored -> "Permission denied";
+            case NotDirectoryException ignored -> "Not a directory";
+            default -> e.getMessage() != null && e.getMessage().equals("Is a directory") ? e.getMessage() : "Input/output error";
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package shell;
+
+import java.util.Map;
+
+
+/**
+ * Environment block handed to child processes.
+ * <p>
+ * A snapshot is immutable and is built once per change of an exported
+ * variable, so starting a process never walks the session variables.
+ * While it matches the environment the shell was started with, the
+ * environment a {@link ProcessBuilder} inherits is left untouched.
+ */
+final class Environment {
+
+    private final Map<String, String> variables;
+    private final boolean inherited;
+    private final int version;
+
+    private Environment(Map<String, String> variables, boolean inherited, int version) {
+        this.variables = variables;
+        this.inherited = inherited;
+        this.version = version;
+    }
+
+    static Environment of(Map<String, String> variables, int version) {
+        return new Environment(Map.copyOf(variables), variables.equals(System.getenv()), version);
+    }
+
+    Map<String, String> variables() {
+        return variables;
+    }
+
+    boolean inherited() {
+        return inherited;
+    }
+
+    int version() {
+        return version;
+    }
+
+    void applyTo(ProcessBuilder builder) {
+        if (inherited) return;
+        var environment = builder.environment();
+        environment.clear();
+        environment.putAll(variables);
+    }
+}
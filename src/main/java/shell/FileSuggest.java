@@ -0,0 +1,203 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Completes file names in argument position.
+ * <p>
+ * A directory is listed once and its sorted names are cached together with
+ * its modification time, so successive TABs only cost a stat of the directory
+ * and a binary search. Listing runs on a virtual thread and completion waits
+ * for it only briefly: a huge directory rings the bell on the first TAB
+ * instead of freezing the prompt, and is ready for the next one.
+ */
+class FileSuggest {
+
+    private static final long WAIT_MS = 50;
+    private static final int CACHED_DIRECTORIES = 64;
+
+    private final Map<Path, Listing> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+            return size() > CACHED_DIRECTORIES;
+        }
+    };
+
+    /**
+     * Returns the completions of the word, each being the whole word as typed
+     * up to its last {@code /} followed by a matching name; directories end
+     * with {@code /}. Names are checked for being directories only when read.
+     */
+    Suggest.Result suggest(String word, Path pwd) {
+        int slash = word.lastIndexOf('/');
+        var head = word.substring(0, slash + 1);
+        var prefix = word.substring(slash + 1);
+        var directory = pwd.resolve(expandHome(head.isEmpty() ? "." : head));
+
+        Names listed;
+        try {
+            listed = listing(directory).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException | IOException e) {
+            return Suggest.Result.notFound();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Suggest.Result.notFound();
+        }
+
+        // dot files are offered only when asked for, as in bash
+        var names = prefix.startsWith(".") ? listed.all() : listed.visible();
+        int from = lowerBound(names, prefix), to = from;
+        while (to < names.length && names[to].startsWith(prefix)) to++;
+        if (from == to) return Suggest.Result.notFound();
+
+        var common = head + commonPrefix(names[from], names[to - 1]);
+        return Suggest.Result.of(common, new Matches(head, directory, names, from, to));
+    }
+
+    /**
+     * Whether the word starting at {@code start} is a command name: the first
+     * word of the line or the first one after a {@code |} or {@code &}.
+     */
+    static boolean isCommandPosition(CharSequence line, int start) {
+        char last = 0, beforeLast = 0;
+        for (int i = 0; i < start && i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ' ' || c == '\t') continue;
+            beforeLast = last;
+            last = c;
+            if (c == '\\') {
+                // an escaped character is part of a word
+                last = 'x';
+                i++;
+            }
+        }
+        return last == 0 || last == '|' || last == '&' && beforeLast != '>';
+    }
+
+    /**
+     * Start of the word under the cursor: after the last blank which isn't escaped.
+     */
+    static int wordStart(CharSequence line, int cursor) {
+        int start = 0;
+        for (int i = 0; i < cursor; i++) {
+            char c = line.charAt(i);
+            if (c == '\\') i++;
+            else if (c == ' ' || c == '\t' || c == '|' || c == '&' || c == '>' || c == '<') start = i + 1;
+        }
+        return Math.min(start, cursor);
+    }
+
+    static String unescape(String word) {
+        if (word.indexOf('\\') < 0) return word;
+        var sb = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '\\' && i + 1 < word.length()) c = word.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escapes what the lexer would otherwise split or interpret.
+     */
+    static String escape(String text) {
+        var sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (" \t\\'\"|&<>$".indexOf(c) >= 0) sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private synchronized CompletableFuture<Names> listing(Path directory) throws IOException {
+        var modified = Files.getLastModifiedTime(directory);
+        var cached = cache.get(directory);
+        if (cached != null && cached.modified().equals(modified)) return cached.names();
+
+        var names = new CompletableFuture<Names>();
+        Thread.ofVirtual().name("file-suggest").start(() -> {
+            try (var entries = Files.list(directory)) {
+                var sorted = entries.map(entry -> entry.getFileName().toString()).toArray(String[]::new);
+                Arrays.sort(sorted);
+                // names like "-x" or "#x" sort before dot files, so they are filtered, not skipped
+                var visible = Arrays.stream(sorted).filter(name -> !name.startsWith(".")).toArray(String[]::new);
+                names.complete(new Names(sorted, visible));
+            } catch (IOException | RuntimeException e) {
+                names.completeExceptionally(e);
+            }
+        });
+        cache.put(directory, new Listing(modified, names));
+        return names;
+    }
+
+    private static String expandHome(String path) {
+        if (path.equals("~") || path.startsWith("~/"))
+            return System.getProperty("user.home") + path.substring(1);
+        return path;
+    }
+
+    private static int lowerBound(String[] names, String prefix) {
+        int found = Arrays.binarySearch(names, prefix);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    private static String commonPrefix(String first, String last) {
+        int n = 0;
+        while (n < first.length() && n < last.length() && first.charAt(n) == last.charAt(n)) n++;
+        return first.substring(0, n);
+    }
+
+    private record Listing(FileTime modified, CompletableFuture<Names> names) {
+    }
+
+    /**
+     * Sorted names of a directory, with and without its dot files.
+     */
+    private record Names(String[] all, String[] visible) {
+    }
+
+    /**
+     * The matching range of a listing, completed and checked for directories on access.
+     */
+    private static final class Matches extends AbstractList<String> {
+        private final String head;
+        private final Path directory;
+        private final String[] names;
+        private final int from;
+        private final int to;
+
+        Matches(String head, Path directory, String[] names, int from, int to) {
+            this.head = head;
+            this.directory = directory;
+            this.names = names;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String get(int index) {
+            var name = names[from + index];
+            return head + name + (Files.isDirectory(directory.resolve(name)) ? "/" : "");
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
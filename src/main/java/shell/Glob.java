@@ -0,0 +1,346 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * Pathname expansion of the words of one command line.
+ * <p>
+ * A pattern is split on {@code /} into segments. Leading and inner segments
+ * without wildcards are resolved directly instead of being searched for, so
+ * {@code src/main/*.java} lists one directory. A {@code **} segment matches
+ * any number of directories, without following symbolic links. Names starting
+ * with {@code .} only match a segment which starts with a literal {@code .}.
+ * <p>
+ * Every directory is listed by its own fork-join task. Once all of them have
+ * completed, the matches of the word are sorted as a whole, as bash sorts
+ * them, and handed to the caller.
+ * <p>
+ * Expansions are limited to {@code shell.glob.limit} bytes per line
+ * ({@code ARG_MAX} by default), counted as {@code execve} counts them. The
+ * walk stops as soon as the limit is crossed, so a pattern over a huge tree
+ * fails without listing all of it.
+ */
+final class Glob {
+
+    static final long LIMIT = Long.getLong("shell.glob.limit", 2 * 1024 * 1024);
+
+    private final Path directory;
+    private long used;
+
+    Glob(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Passes the paths matching the pattern to the sink, or the word itself
+     * if nothing matches. Quoted characters in the pattern are escaped with
+     * {@code \}.
+     */
+    void expand(String pattern, String word, Consumer<String> sink) {
+        var walk = walk(pattern);
+        if (walk == null) {
+            sink.accept(word);
+            return;
+        }
+        walk.fork();
+        var matches = new ArrayList<String>();
+        walk.emit(matches::add);
+        if (walk.budget.overflown()) throw new TooLongException(word);
+        if (matches.isEmpty()) sink.accept(word);
+        // sorted as a whole like in bash, so a/b/y.c comes before a/x.c
+        matches.sort(null);
+        matches.forEach(sink);
+        used = LIMIT - walk.budget.remaining.get();
+    }
+
+    private Walk walk(String pattern) {
+        boolean absolute = pattern.startsWith("/");
+        boolean directories = pattern.endsWith("/");
+
+        var segments = new ArrayList<String>();
+        for (var segment : pattern.split("/+"))
+            if (!segment.isEmpty()) segments.add(segment);
+        if (segments.isEmpty()) return null;
+
+        var start = absolute ? directory.getRoot() : directory;
+        var prefix = absolute ? "/" : "";
+        return new Walk(segments.toArray(String[]::new), directories, new Budget(LIMIT - used), start, prefix, 0, false);
+    }
+
+    /**
+     * Matches a name against a pattern segment with {@code *}, {@code ?},
+     * {@code [...]} and {@code \} escapes.
+     */
+    static boolean matches(String pattern, String name) {
+        int p = 0, n = 0, star = -1, backtrack = 0;
+        while (n < name.length()) {
+            if (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    star = ++p;
+                    backtrack = n;
+                    continue;
+                }
+                if (c == '?') {
+                    p++;
+                    n++;
+                    continue;
+                }
+                if (c == '[') {
+                    int end = bracket(pattern, p, name.charAt(n));
+                    if (end > 0) {
+                        p = end;
+                        n++;
+                        continue;
+                    }
+                    if (end == 0 && name.charAt(n) == '[') {
+                        p++;
+                        n++;
+                        continue;
+                    }
+                } else {
+                    if (c == '\\' && p + 1 < pattern.length()) c = pattern.charAt(p + 1);
+                    if (c == name.charAt(n)) {
+                        p += pattern.charAt(p) == '\\' && p + 1 < pattern.length() ? 2 : 1;
+                        n++;
+                        continue;
+                    }
+                }
+            }
+            if (star < 0) return false;
+            p = star;
+            n = ++backtrack;
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * Matches a character against the bracket expression at {@code open}:
+     * returns the index after it if the character matches, its negation if it
+     * doesn't, and 0 if the bracket is not closed.
+     */
+    private static int bracket(String pattern, int open, char c) {
+        int p = open + 1;
+        boolean negated = p < pattern.length() && (pattern.charAt(p) == '!' || pattern.charAt(p) == '^');
+        if (negated) p++;
+        boolean matched = false;
+        for (int first = p; p < pattern.length(); p++) {
+            char low = pattern.charAt(p);
+            if (low == ']' && p > first) return matched != negated ? p + 1 : -(p + 1);
+            if (low == '\\' && p + 1 < pattern.length()) low = pattern.charAt(++p);
+            char high = low;
+            if (p + 2 < pattern.length() && pattern.charAt(p + 1) == '-' && pattern.charAt(p + 2) != ']') {
+                high = pattern.charAt(p + 2);
+                if (high == '\\' && p + 3 < pattern.length()) high = pattern.charAt(++p + 2);
+                p += 2;
+            }
+            if (low <= c && c <= high) matched = true;
+        }
+        return 0;
+    }
+
+    private static boolean isLiteral(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '*' || c == '?' || c == '[') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Bytes left for the expansions of the line, shared by all tasks of a word.
+     */
+    private record Budget(AtomicLong remaining) {
+
+        Budget(long limit) {
+            this(new AtomicLong(limit));
+        }
+
+        /**
+         * Accounts a match as {@code execve} would: the string, its terminating
+         * zero and its pointer. Returns false once the budget is exhausted.
+         */
+        boolean take(String match) {
+            return remaining.addAndGet(-(match.length() + 1 + Long.BYTES)) >= 0;
+        }
+
+        void exhaust() {
+            remaining.set(-1);
+        }
+
+        boolean overflown() {
+            return remaining.get() < 0;
+        }
+    }
+
+    private static final class Walk extends RecursiveAction {
+
+        private final String[] segments;
+        private final boolean directories;
+        private final Budget budget;
+        private final Path dir;
+        private final String prefix;
+        private final int index;
+        private final boolean nested;
+
+        /**
+         * Matches of this directory and the walks of its subdirectories.
+         */
+        private final List<Object> parts = new ArrayList<>();
+
+        Walk(String[] segments, boolean directories, Budget budget, Path dir, String prefix, int index, boolean nested) {
+            this.segments = segments;
+            this.directories = directories;
+            this.budget = budget;
+            this.dir = dir;
+            this.prefix = prefix;
+            this.index = index;
+            this.nested = nested;
+        }
+
+        @Override
+        protected void compute() {
+            var dir = this.dir;
+            var prefix = this.prefix;
+            int index = this.index;
+
+            // literal segments are looked up, not listed
+            while (index < segments.length && isLiteral(segments[index])) {
+                var name = FileSuggest.unescape(segments[index]);
+                dir = dir.resolve(name);
+                if (++index == segments.length) {
+                    if (directories ? Files.isDirectory(dir) : Files.exists(dir, LinkOption.NOFOLLOW_LINKS))
+                        match(prefix + name + (directories ? "/" : ""));
+                    return;
+                }
+                if (!Files.isDirectory(dir)) return;
+                prefix = prefix + name + "/";
+            }
+
+            if (index == segments.length) {
+                if (!prefix.isEmpty()) match(prefix);
+                return;
+            }
+
+            var segment = segments[index];
+            if (segment.equals("**")) {
+                recurse(dir, prefix, index);
+                return;
+            }
+
+            boolean last = index + 1 == segments.length;
+            boolean hidden = segment.startsWith(".") || segment.startsWith("\\.");
+            for (var name : list(dir, segment, hidden, last && !directories ? prefix.length() : -1)) {
+                if (budget.overflown()) return;
+                var path = dir.resolve(name);
+                if (last && !directories) match(prefix + name);
+                else if (Files.isDirectory(path)) {
+                    if (last) match(prefix + name + "/");
+                    else fork(path, prefix + name + "/", index + 1, false);
+                }
+            }
+        }
+
+        /**
+         * {@code **} matches this directory, then every subdirectory below it.
+         * As the last segment it matches every file and directory of the tree.
+         * <p>
+         * Telling directories apart takes a stat per entry. As in {@code find},
+         * the link count of the directory, two plus its subdirectories, tells
+         * when the remaining entries can't be directories; file systems which
+         * don't count links report less than two and get every entry checked.
+         */
+        private void recurse(Path dir, String prefix, int index) {
+            boolean last = index + 1 == segments.length;
+            if (!last) fork(dir, prefix, index + 1, false);
+            else if (!nested && !prefix.isEmpty()) match(prefix);
+
+            int subdirectories = subdirectories(dir);
+            for (var name : list(dir, "*", false, last && !directories ? prefix.length() : -1)) {
+                if (budget.overflown()) return;
+                var path = dir.resolve(name);
+                boolean directory = subdirectories > 0 && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                if (last && (directory || !directories)) match(prefix + name + (directories ? "/" : ""));
+                if (directory) {
+                    subdirectories--;
+                    fork(path, prefix + name + "/", index, true);
+                }
+            }
+        }
+
+        private static int subdirectories(Path dir) {
+            try {
+                int links = (Integer) Files.getAttribute(dir, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+                return links >= 2 ? links - 2 : Integer.MAX_VALUE;
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                return Integer.MAX_VALUE;
+            }
+        }
+
+        private void fork(Path dir, String prefix, int index, boolean nested) {
+            var walk = new Walk(segments, directories, budget, dir, prefix, index, nested);
+            parts.add(walk);
+            walk.fork();
+        }
+
+        private void match(String path) {
+            if (budget.take(path)) parts.add(path);
+        }
+
+        /**
+         * Names of the directory matching the segment; an unreadable directory
+         * has none. When every name will be a match with the given prefix
+         * length, the listing gives up as soon as the names alone exceed the
+         * budget.
+         */
+        private List<String> list(Path dir, String segment, boolean hidden, int prefix) {
+            var names = new ArrayList<String>();
+            long bytes = 0;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (var entry : entries) {
+                    var name = entry.getFileName().toString();
+                    if (name.startsWith(".") && !hidden || !matches(segment, name)) continue;
+                    names.add(name);
+                    if (prefix >= 0) bytes += prefix + name.length() + 1 + Long.BYTES;
+                    if (bytes > budget.remaining.get()) {
+                        budget.exhaust();
+                        return List.of();
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException | SecurityException e) {
+                return List.of();
+            }
+            return names;
+        }
+
+        /**
+         * Passes the matches to the sink, waiting for each walk in turn.
+         */
+        void emit(Consumer<String> sink) {
+            join();
+            for (var part : parts) {
+                if (part instanceof Walk walk) walk.emit(sink);
+                else if (!budget.overflown()) sink.accept((String) part);
+            }
+        }
+    }
+
+    static final class TooLongException extends RuntimeException {
+        TooLongException(String word) {
+            super("%s: Argument list too long".formatted(word));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+
+/**
+ * Command history kept in an append-only file, one entry per line.
+ * <p>
+ * Entries from earlier sessions are read through a read-only memory map of
+ * the file. Their line offsets are indexed on first use, so opening the
+ * history costs no parsing at startup. Entries added in this session are
+ * kept in memory and appended to the file right away.
+ */
+class History implements AutoCloseable {
+
+    static final int NOT_FOUND = -1;
+
+    /**
+     * A single mapping is limited to 2 GB; older entries beyond that are not loaded.
+     */
+    private static final long MAX_MAPPED = Integer.MAX_VALUE;
+
+    private final List<String> recent = new ArrayList<>();
+    private final MappedByteBuffer mapped;
+    private final FileChannel channel;
+
+    private int[] offsets;
+    private int count = -1;
+
+    private History(MappedByteBuffer mapped, FileChannel channel) {
+        this.mapped = mapped;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the history file, falling back to an in-memory history
+     * if the file can't be used.
+     */
+    static History open(Path file) {
+        try {
+            MappedByteBuffer mapped = null;
+            if (Files.exists(file)) {
+                try (var reader = FileChannel.open(file, READ)) {
+                    long size = reader.size(), length = Math.min(size, MAX_MAPPED);
+                    mapped = reader.map(FileChannel.MapMode.READ_ONLY, size - length, length);
+                }
+            }
+            return new History(mapped, FileChannel.open(file, WRITE, CREATE, APPEND));
+        } catch (IOException | UnsupportedOperationException e) {
+            return new History(null, null);
+        }
+    }
+
+    static Path defaultFile() {
+        var file = System.getenv("HISTFILE");
+        if (file != null && !file.isEmpty()) return Path.of(file);
+        return Path.of(System.getProperty("user.home"), ".shell_history");
+    }
+
+    int size() {
+        index();
+        return count + recent.size();
+    }
+
+    String get(int i) {
+        index();
+        if (i >= count) return recent.get(i - count);
+
+        int from = offsets[i], to = offsets[i + 1] - 1;
+        var bytes = new byte[to - from];
+        mapped.get(from, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    void add(String line) throws IOException {
+        if (line.isBlank()) return;
+        if (!recent.isEmpty() && recent.getLast().equals(line)) return;
+
+        recent.add(line);
+        if (channel != null) {
+            var bytes = ByteBuffer.wrap((line + '\n').getBytes(UTF_8));
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+    }
+
+    /**
+     * Returns the newest entry at or before {@code from} which contains the query,
+     * or {@link #NOT_FOUND}. Called again with a longer query and the previous
+     * match, the search resumes where it stopped, so an incremental search
+     * never scans the history more than once.
+     */
+    int search(String query, int from) {
+        index();
+        var needle = query.getBytes(UTF_8);
+        for (int i = Math.min(from, size() - 1); i >= 0; i--) {
+            if (i >= count ? recent.get(i - count).contains(query) : contains(i, needle))
+                return i;
+        }
+        return NOT_FOUND;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+
+    private boolean contains(int entry, byte[] needle) {
+        int from = offsets[entry], to = offsets[entry + 1] - 1 - needle.length;
+        outer:
+        for (int i = from; i <= to; i++) {
+            for (int j = 0; j < needle.length; j++)
+                if (mapped.get(i + j) != needle[j]) continue outer;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the start of every mapped line plus an end sentinel. The first
+     * line is skipped if the mapping starts in the middle of one.
+     */
+    private void index() {
+        if (count >= 0) return;
+        if (mapped == null) {
+            offsets = new int[]{0};
+            count = 0;
+            return;
+        }
+
+        int limit = mapped.limit(), n = 0, start = 0;
+        var starts = new int[1024];
+        if (mapped.capacity() == MAX_MAPPED) {
+            while (start < limit && mapped.get(start) != '\n') start++;
+            start++;
+        }
+        for (int i = start; i < limit; i++) {
+            if (i == start || mapped.get(i - 1) == '\n') {
+                if (n + 1 == starts.length) starts = Arrays.copyOf(starts, n * 2);
+                starts[n++] = i;
+            }
+        }
+        starts[n] = limit > 0 && mapped.get(limit - 1) == '\n' ? limit : limit + 1;
+
+        offsets = starts;
+        count = n;
+    }
+}
@@ -0,0 +1,185 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+/**
+ * Keeps {@link Suggest} in line with the executables found on PATH.
+ * <p>
+ * Every PATH directory is scanned once and registered with a {@link WatchService};
+ * a background thread then applies created, deleted and modified entries
+ * to the index incrementally. {@link #sync(String)} re-registers directories
+ * whenever the PATH value itself changes, on a thread of its own, so that
+ * {@code export PATH=...} doesn't wait for the new directories to be listed.
+ */
+public class Indexer implements AutoCloseable {
+
+    private final Suggest suggest;
+    private final WatchService watcher;
+
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Map<Path, Set<String>> entries = new HashMap<>();
+    private final ExecutorService syncs = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().name("path-sync").factory());
+
+    private String path;
+    private volatile String requested;
+
+    public Indexer(Suggest suggest) throws IOException {
+        this.suggest = suggest;
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Scans PATH and then watches it, both on a background thread, so the
+     * prompt never waits for the index. PATH is read under the lock, so a
+     * concurrent {@link #sync(String)} with a newer value can't be undone.
+     */
+    public void start(Supplier<String> path) {
+        Thread.ofPlatform().daemon().name("path-indexer").start(() -> {
+            long begin = Startup.begin();
+            synchronized (this) {
+                resync(path.get());
+            }
+            Startup.end("path scan", begin);
+            watch();
+        });
+    }
+
+    /**
+     * Re-registers the directories of the new PATH in the background. Only
+     * the latest value is applied when several changes queue up.
+     */
+    public void sync(String path) {
+        requested = path;
+        syncs.execute(() -> {
+            synchronized (this) {
+                resync(requested);
+            }
+        });
+    }
+
+    private void resync(String path) {
+        if (Objects.equals(this.path, path)) return;
+        this.path = path;
+
+        var directories = directories(path);
+        for (var directory : List.copyOf(keys.keySet()))
+            if (!directories.contains(directory)) unregister(directory);
+        for (var directory : directories)
+            if (!keys.containsKey(directory)) register(directory);
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncs.shutdownNow();
+        watcher.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                var key = watcher.take();
+                var directory = (Path) key.watchable();
+                synchronized (this) {
+                    var events = key.pollEvents();
+                    if (keys.get(directory) == key)
+                        events.forEach(event -> apply(directory, event));
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shell is shutting down
+        }
+    }
+
+    private void apply(Path directory, WatchEvent<?> event) {
+        if (event.kind() == OVERFLOW) {
+            rescan(directory);
+            return;
+        }
+        var name = event.context().toString();
+        var executable = event.kind() != ENTRY_DELETE && Files.isExecutable(directory.resolve(name));
+        var names = entries.get(directory);
+
+        if (executable && names.add(name)) suggest.index(name);
+        if (!executable && names.remove(name)) suggest.remove(name);
+    }
+
+    private void register(Path directory) {
+        if (!Files.isDirectory(directory)) return;
+        try {
+            keys.put(directory, directory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+        } catch (IOException e) {
+            return;
+        }
+        var names = list(directory);
+        names.forEach(suggest::index);
+        entries.put(directory, names);
+    }
+
+    private void unregister(Path directory) {
+        keys.remove(directory).cancel();
+        entries.remove(directory).forEach(suggest::remove);
+    }
+
+    private void rescan(Path directory) {
+        var names = entries.get(directory);
+        var actual = list(directory);
+        for (var name : List.copyOf(names))
+            if (!actual.contains(name) && names.remove(name)) suggest.remove(name);
+        for (var name : actual)
+            if (names.add(name)) suggest.index(name);
+    }
+
+    private static Set<String> list(Path directory) {
+        try (var files = Files.list(directory)) {
+            return files.filter(Files::isExecutable)
+                    .map(Path::getFileName)
+                    .map(Path::toString)
+                    .collect(Collectors.toCollection(HashSet::new));
+        } catch (IOException e) {
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * The existing PATH directories by their real path, so that two entries
+     * for one directory, like {@code /bin} and {@code /usr/bin} where one links
+     * to the other, share one watch and count each name once.
+     */
+    private static Set<Path> directories(String path) {
+        var directories = new LinkedHashSet<Path>();
+        if (path == null) return directories;
+        for (var entry : path.split(":")) {
+            if (entry.isEmpty()) continue;
+            try {
+                directories.add(Paths.get(entry).toRealPath());
+            } catch (IOException e) {
+                // not there, nothing to index
+            }
+        }
+        return directories;
+    }
+}
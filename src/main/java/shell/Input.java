@@ -1,11 +1,13 @@
 package shell;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 
-record Input(String line, List<String> args, List<Redirect> redirects) {
+record Input(String line, List<String> args, List<Redirect> redirects, boolean background) {
 
     String command() {
         return args.get(0);
@@ -23,104 +25,189 @@ record Input(String line, List<String> args, List<Redirect> redirects) {
         return args.toArray(String[]::new);
     }
 
-    String argsAsString() {
-        return line.substring(command().length() + 1, redirects.isEmpty() ? line.length() : redirects.get(0).pos);
+    Input inBackground() {
+        return new Input(line, args, redirects, true);
     }
 
     boolean isBlank() {
         return args.isEmpty();
     }
 
+    boolean redirectsStdout() {
+        for (var redirect : redirects)
+            if (redirect.type() == RedirectType.REDIRECT_STDOUT || redirect.type() == RedirectType.APPEND_STDOUT)
+                return true;
+        return false;
+    }
+
+    boolean redirectsStdin() {
+        return stdin() != null;
+    }
+
+    /**
+     * The redirect the command reads from; the last one wins, as in bash.
+     */
+    Redirect stdin() {
+        for (var redirect : redirects.reversed())
+            if (redirect.type().isInput()) return redirect;
+        return null;
+    }
+
     static Input of(String line) {
-        var parser = new Parser().parse(line);
-        return new Input(line, parser.args, parser.redirects);
+        return pipeline(line).getFirst();
     }
 
-    static final class Parser {
+    /**
+     * Splits the line on unquoted {@code |} into pipeline stages. Each stage
+     * is an independent {@link Input} whose {@code line} is its own text. A
+     * trailing {@code &} marks every stage as {@code background}.
+     *
+     * @throws SyntaxException if a stage is empty, {@code &} is not last or the
+     *                         line uses {@code &&}, {@code ||} or {@code >&}
+     */
+    static List<Input> pipeline(String line) {
+        return new Parser(new Lexer(), null, List.of()).parse(line).stages;
+    }
 
-        private final List<String> args = new ArrayList<>();
-        private final List<Redirect> redirects = new ArrayList<>();
+    /**
+     * Same as {@link #pipeline(String)}, expanding variables with the given lookup.
+     */
+    static List<Input> pipeline(String line, Function<String, String> variables) {
+        return new Parser(new Lexer(variables), null, List.of()).parse(line).stages;
+    }
 
-        private Redirect.Builder rb = new Redirect.Builder();
-        private StringBuilder sb = new StringBuilder();
+    /**
+     * Same as {@link #pipeline(String, Function)}, expanding unquoted glob
+     * patterns in arguments against the given directory.
+     *
+     * @throws Glob.TooLongException if the expansions exceed {@link Glob#LIMIT}
+     */
+    static List<Input> pipeline(String line, Function<String, String> variables, Path directory) {
+        return pipeline(line, variables, directory, List.of());
+    }
 
-        private State state = State.DEFAULT_PARSE;
+    /**
+     * Same as {@link #pipeline(String, Function, Path)}, taking the bodies of the
+     * line's here-documents in the order of their {@link #heredocs delimiters}.
+     */
+    static List<Input> pipeline(String line, Function<String, String> variables, Path directory, List<String> heredocs) {
+        return new Parser(new Lexer(variables), new Glob(directory), heredocs).parse(line).stages;
+    }
 
-        private enum State {
-            DEFAULT_PARSE,
-            SINGLE_QUOTE,
-            DOUBLE_QUOTE,
+    /**
+     * Returns the delimiters of the line's here-documents, in the order their
+     * bodies follow the line.
+     */
+    static List<String> heredocs(String line) {
+        var delimiters = new ArrayList<String>();
+        var lexer = new Lexer().reset(line);
+        boolean pending = false;
+        while (lexer.next()) {
+            if (pending && lexer.type() == Lexer.Type.WORD) delimiters.add(lexer.text());
+            pending = lexer.type() == Lexer.Type.REDIRECT && lexer.redirect() == RedirectType.HERE_DOC;
         }
+        return delimiters;
+    }
 
-        Parser parse(String line) {
-            char[] data = line.toCharArray();
-            for (int i = 0; i < data.length; i++)
-                consume(data[i], i);
-            flush();
-            return this;
+    static final class Parser {
+
+        private final List<Input> stages = new ArrayList<>();
+        private final Lexer lexer;
+        private final Glob glob;
+        private final Iterator<String> heredocs;
+
+        private List<String> args = new ArrayList<>();
+        private List<Redirect> redirects = new ArrayList<>();
+        private String line;
+        private int start = -1;
+        private int end;
+
+        private RedirectType pending;
+        private boolean background;
+
+        Parser(Lexer lexer, Glob glob, List<String> heredocs) {
+            this.lexer = lexer;
+            this.glob = glob;
+            this.heredocs = heredocs.iterator();
         }
 
-        private void consume(char c, int pos) {
-            switch (c) {
-                case ' ':
-                    if (inQuotes()) sb.append(c);
-                    else flush();
-                    break;
-
-                case '"': {
-                    switch (state) {
-                        case SINGLE_QUOTE -> sb.append(c);
-                        case DOUBLE_QUOTE -> resetAndFlush();
-                        default -> state = State.DOUBLE_QUOTE;
+        /**
+         * @throws SyntaxException for an empty stage, a redirect without a
+         *                         target and the operators the shell doesn't run
+         */
+        Parser parse(String line) {
+            this.line = line;
+            lexer.reset(line);
+            while (lexer.next()) {
+                if (background) throw new SyntaxException("syntax error: only a trailing `&' is supported");
+                switch (lexer.type()) {
+                    case PIPE -> {
+                        if (start < 0 || pending != null) throw unexpected();
+                        stage();
                     }
-                    break;
-                }
-                case '\'': {
-                    switch (state) {
-                        case DOUBLE_QUOTE -> sb.append(c);
-                        case SINGLE_QUOTE -> resetAndFlush();
-                        default -> state = State.SINGLE_QUOTE;
+                    case AND, OR, DUPLICATE -> throw unsupported();
+                    case BACKGROUND -> {
+                        if (start < 0 || pending != null) throw unexpected();
+                        background = true;
                     }
-                    break;
-                }
-                case '>': {
-                    sb.append(c);
-
-                    var redirectType = RedirectType.of(sb.toString());
-                    if (!inQuotes() && redirectType != null) {
-                        rb.type(redirectType).pos(pos - sb.length());
+                    case REDIRECT -> {
+                        if (pending != null) throw unexpected();
+                        if (start < 0) start = lexer.start();
+                        pending = lexer.redirect();
+                        end = lexer.end();
+                    }
+                    case WORD -> {
+                        if (start < 0) start = lexer.start();
+                        if (pending == RedirectType.HERE_DOC) {
+                            redirects.add(new Redirect(pending, heredoc()));
+                            pending = null;
+                        } else if (pending != null) {
+                            redirects.add(new Redirect(pending, lexer.text()));
+                            pending = null;
+                        } else if (glob != null && lexer.glob()) {
+                            glob.expand(lexer.pattern(), lexer.text(), args::add);
+                        } else {
+                            args.add(lexer.text());
+                        }
+                        end = lexer.end();
                     }
-                    break;
-                }
-                default: {
-                    sb.append(c);
-                    break;
                 }
             }
+            if (pending != null) throw new SyntaxException("syntax error near unexpected token `newline'");
+            if (start < 0 && !stages.isEmpty()) throw new SyntaxException("syntax error: unexpected end of line after `|'");
+            stage();
+            if (background) stages.replaceAll(Input::inBackground);
+            return this;
         }
 
-        private void resetAndFlush() {
-            state = State.DEFAULT_PARSE;
-            flush();
+        private SyntaxException unexpected() {
+            return new SyntaxException("syntax error near unexpected token `%s'".formatted(token()));
         }
 
-        private void flush() {
-            if (!sb.isEmpty()) {
-                var token = sb.toString();
-                if (rb.hasType()) {
-                    if (RedirectType.of(token) == null) {
-                        redirects.add(rb.path(token).build());
-                        rb = new Redirect.Builder();
-                    }
-                } else {
-                    args.add(token);
-                }
-            }
-            sb = new StringBuilder();
+        private SyntaxException unsupported() {
+            return new SyntaxException("syntax error: `%s' is not supported".formatted(token()));
         }
 
-        private boolean inQuotes() {
-            return EnumSet.of(State.SINGLE_QUOTE, State.DOUBLE_QUOTE).contains(state);
+        private String token() {
+            return line.substring(lexer.start(), lexer.end());
+        }
+
+        /**
+         * The body of the here-document, expanded unless its delimiter is quoted.
+         */
+        private String heredoc() {
+            var body = heredocs.hasNext() ? heredocs.next() : "";
+            return lexer.quoted() || lexer.escaped() ? body : lexer.document(body);
+        }
+
+        private void stage() {
+            var stageLine = start < 0 ? "" : line.substring(start, Math.max(start, end));
+            stages.add(new Input(stageLine, args, redirects, false));
+
+            args = new ArrayList<>();
+            redirects = new ArrayList<>();
+            pending = null;
+            start = -1;
         }
     }
 
@@ -129,48 +216,42 @@ record Input(String line, List<String> args, List<Redirect> redirects) {
         APPEND_STDERR,
         REDIRECT_STDOUT,
         REDIRECT_STDERR,
+        REDIRECT_STDIN,
+        HERE_STRING,
+        HERE_DOC,
         ;
 
-        static RedirectType of(String s) {
-            return switch (s) {
-                case ">>", "1>>" -> APPEND_STDOUT;
-                case ">", "1>" -> REDIRECT_STDOUT;
-                case "2>>" -> APPEND_STDERR;
-                case "2>" -> REDIRECT_STDERR;
-                default -> null;
-            };
+        boolean isInput() {
+            return this == REDIRECT_STDIN || this == HERE_STRING || this == HERE_DOC;
         }
-    }
-
-    record Redirect(RedirectType type, String path, int pos) {
-
-        static class Builder {
-            private RedirectType type;
-            private String path;
-            private int pos = 1;
 
-            Builder type(RedirectType type) {
-                this.type = type;
-                return this;
-            }
-
-            Builder path(String path) {
-                this.path = path;
-                return this;
-            }
+        static RedirectType of(char fd, boolean append) {
+            if (fd == '2') return append ? APPEND_STDERR : REDIRECT_STDERR;
+            return append ? APPEND_STDOUT : REDIRECT_STDOUT;
+        }
+    }
 
-            Builder pos(int pos) {
-                this.pos = pos;
-                return this;
-            }
+    static final class SyntaxException extends RuntimeException {
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
 
-            boolean hasType() {
-                return type != null && path == null;
-            }
+    /**
+     * The target is a file name, except for here-strings and here-documents,
+     * which carry the text fed to the command.
+     */
+    record Redirect(RedirectType type, String target) {
 
-            Redirect build() {
-                return new Redirect(type, path, pos);
-            }
+        /**
+         * What a here-string or here-document writes to stdin, null for a file.
+         */
+        String text() {
+            return switch (type) {
+                case HERE_STRING -> target + "\n";
+                case HERE_DOC -> target;
+                default -> null;
+            };
         }
     }
 }
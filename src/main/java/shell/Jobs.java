@@ -0,0 +1,109 @@
+package shell;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Table of background jobs started with a trailing {@code &}.
+ * <p>
+ * Every job is supervised by its own virtual thread, which runs the command,
+ * pumps its output and records the exit status, so the prompt stays free
+ * while jobs are running.
+ */
+public class Jobs {
+
+    private final TreeMap<Integer, Job> table = new TreeMap<>();
+
+    /**
+     * Registers a job for already started processes and hands the rest
+     * of its execution to a supervisor thread.
+     */
+    synchronized Job start(String line, List<Process> processes, Callable<Integer> supervisor) {
+        int id = table.isEmpty() ? 1 : table.lastKey() + 1;
+        var job = new Job(id, line);
+        processes.forEach(process -> job.pids.add(process.pid()));
+        table.put(id, job);
+
+        Thread.ofVirtual().name("job-" + id).start(() -> {
+            try {
+                job.status.complete(supervisor.call());
+            } catch (Throwable e) {
+                job.status.complete(1);
+            }
+        });
+        return job;
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(table.values());
+    }
+
+    /**
+     * Looks a job up by {@code n} or {@code %n}; without a spec, returns the most recent job.
+     */
+    synchronized Optional<Job> find(String spec) {
+        if (table.isEmpty()) return Optional.empty();
+        if (spec == null) return Optional.of(table.lastEntry().getValue());
+        try {
+            return Optional.ofNullable(table.get(Integer.parseInt(spec.startsWith("%") ? spec.substring(1) : spec)));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    synchronized void remove(Job job) {
+        table.remove(job.id);
+    }
+
+    /**
+     * Reports jobs which finished since the last prompt and drops them from the table.
+     */
+    public void notifyDone() throws IOException {
+        for (var job : list()) {
+            if (!job.isDone()) continue;
+            remove(job);
+            Output.TerminalWriter.STDERR.writeLine("[%d]  %-10s %s".formatted(job.id, job.state(), job.line));
+        }
+        Output.TerminalWriter.STDERR.close();
+    }
+
+    static final class Job {
+        final int id;
+        final String line;
+        final List<Long> pids = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Integer> status = new CompletableFuture<>();
+
+        Job(int id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+
+        boolean isDone() {
+            return status.isDone();
+        }
+
+        int await() {
+            return status.join();
+        }
+
+        String state() {
+            if (!isDone()) return "Running";
+            int code = status.join();
+            return code == 0 ? "Done" : "Exit " + code;
+        }
+
+        /**
+         * Pid of the last process, as bash reports it for {@code $!}.
+         */
+        long pid() {
+            return pids.isEmpty() ? ProcessHandle.current().pid() : pids.getLast();
+        }
+    }
+}
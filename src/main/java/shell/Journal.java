@@ -0,0 +1,286 @@
+package shell;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+
+/**
+ * Journal of the commands run by the shell, for looking back at what happened.
+ * <p>
+ * Every command line leaves one fixed-size record in a memory-mapped ring of
+ * {@code shell.journal.records} slots: its line, the resolved binaries, the
+ * directory, start and end time, exit status and the bytes it wrote to stdout
+ * and stderr. Recording is a few stores into the mapping, so it allocates
+ * nothing and makes no system call; the kernel writes the pages back on its
+ * own. Text which doesn't fit in a record is truncated.
+ * <p>
+ * Shells sharing the file claim slots with an atomic add on the mapped header.
+ * A record's sequence number is stored last, so a reader skips records which
+ * are being written or were overwritten while it read them.
+ * <p>
+ * The file is mapped on the first record. If it can't be used, or was
+ * created with another layout, nothing is recorded.
+ */
+final class Journal {
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("shell.journal"));
+
+    private static final int RECORDS = Integer.getInteger("shell.journal.records", 4096);
+
+    private static final long MAGIC = 0x314c4e524a485353L; // "SSHJRNL1"
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 512;
+
+    // header
+    private static final int H_MAGIC = 0;
+    private static final int H_RECORD_SIZE = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_NEXT = 16;
+
+    // record
+    private static final int R_SEQUENCE = 0;
+    private static final int R_START = 8;
+    private static final int R_END = 16;
+    private static final int R_OUT = 24;
+    private static final int R_ERR = 32;
+    private static final int R_STATUS = 40;
+    private static final int R_PID = 44;
+    private static final int R_DIRECTORY_LENGTH = 48;
+    private static final int R_BINARIES_LENGTH = 50;
+    private static final int R_LINE_LENGTH = 52;
+    private static final int R_FLAGS = 54;
+    private static final int R_TEXT = 64;
+
+    private static final int MAX_DIRECTORY = 160;
+    private static final int MAX_BINARIES = 96;
+
+    private static final byte BACKGROUND = 1;
+    private static final byte TRUNCATED = 2;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int PID = (int) ProcessHandle.current().pid();
+
+    private final Path file;
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private boolean opened;
+
+    private Journal(Path file) {
+        this.file = file;
+    }
+
+    static Journal open(Path file) {
+        return new Journal(file);
+    }
+
+    static Path defaultFile() {
+        var file = System.getenv("SHELL_JOURNAL");
+        if (file != null && !file.isEmpty()) return Path.of(file);
+        return Path.of(System.getProperty("user.home"), ".shell_journal");
+    }
+
+    /**
+     * Records a finished command line. The output is counted by the writers
+     * of the last stage, errors by those of every stage.
+     */
+    synchronized void record(String line, Path directory, List<Command.Cmd> commands, List<Context> contexts,
+                             long start, int status, boolean background) {
+        var buffer = buffer();
+        if (buffer == null) return;
+
+        long sequence = (long) LONG.getAndAdd(buffer, H_NEXT, 1L) + 1;
+        int at = HEADER_SIZE + (int) ((sequence - 1) % capacity) * RECORD_SIZE;
+
+        long err = 0;
+        for (var context : contexts) err += Math.max(0, context.output().stderr().written());
+
+        // readers must see the slot cleared before any of the body changes
+        LONG.setVolatile(buffer, at + R_SEQUENCE, 0L);
+        VarHandle.storeStoreFence();
+        buffer.putLong(at + R_START, start);
+        buffer.putLong(at + R_END, System.currentTimeMillis());
+        buffer.putLong(at + R_OUT, contexts.getLast().output().stdout().written());
+        buffer.putLong(at + R_ERR, err);
+        buffer.putInt(at + R_STATUS, status);
+        buffer.putInt(at + R_PID, PID);
+
+        int text = at + R_TEXT, end = at + RECORD_SIZE;
+        boolean truncated = false;
+
+        var path = directory.toString();
+        int n = encode(buffer, text, path, MAX_DIRECTORY);
+        truncated |= n < encodedLength(path);
+        buffer.putShort(at + R_DIRECTORY_LENGTH, (short) n);
+        text += n;
+
+        int binaries = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            var name = commands.get(i) instanceof Command.RunCmd run
+                    ? run.executable().toString()
+                    : contexts.get(i).input().isBlank() ? "" : contexts.get(i).input().command();
+            if (i > 0) binaries += encode(buffer, text + binaries, "|", MAX_BINARIES - binaries);
+            n = encode(buffer, text + binaries, name, MAX_BINARIES - binaries);
+            truncated |= n < encodedLength(name);
+            binaries += n;
+        }
+        buffer.putShort(at + R_BINARIES_LENGTH, (short) binaries);
+        text += binaries;
+
+        n = encode(buffer, text, line, end - text);
+        truncated |= n < encodedLength(line);
+        buffer.putShort(at + R_LINE_LENGTH, (short) n);
+
+        buffer.put(at + R_FLAGS, (byte) ((background ? BACKGROUND : 0) | (truncated ? TRUNCATED : 0)));
+        LONG.setRelease(buffer, at + R_SEQUENCE, sequence);
+    }
+
+    /**
+     * The records still in the ring, oldest first.
+     */
+    synchronized List<Entry> entries() {
+        var buffer = buffer();
+        if (buffer == null) return List.of();
+
+        long next = (long) LONG.getAcquire(buffer, H_NEXT);
+        var entries = new ArrayList<Entry>();
+        for (long sequence = Math.max(1, next - capacity + 1); sequence <= next; sequence++) {
+            int at = HEADER_SIZE + (int) ((sequence - 1) % capacity) * RECORD_SIZE;
+            if ((long) LONG.getAcquire(buffer, at + R_SEQUENCE) != sequence) continue;
+
+            int text = at + R_TEXT;
+            int directory = buffer.getShort(at + R_DIRECTORY_LENGTH);
+            int binaries = buffer.getShort(at + R_BINARIES_LENGTH);
+            int line = buffer.getShort(at + R_LINE_LENGTH);
+            byte flags = buffer.get(at + R_FLAGS);
+            var entry = new Entry(sequence,
+                    buffer.getLong(at + R_START), buffer.getLong(at + R_END),
+                    buffer.getInt(at + R_STATUS), buffer.getInt(at + R_PID),
+                    buffer.getLong(at + R_OUT), buffer.getLong(at + R_ERR),
+                    (flags & BACKGROUND) != 0, (flags & TRUNCATED) != 0,
+                    decode(buffer, text + directory + binaries, line),
+                    decode(buffer, text, directory),
+                    decode(buffer, text + directory, binaries));
+
+            // the slot was reused while it was read; the fence keeps the reads above before the check
+            VarHandle.loadLoadFence();
+            if ((long) LONG.getAcquire(buffer, at + R_SEQUENCE) == sequence) entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Maps the file on first use, creating it when it is new.
+     */
+    private MappedByteBuffer buffer() {
+        if (opened) return buffer;
+        opened = true;
+        if (!ENABLED) return null;
+        try (var channel = FileChannel.open(file, Set.of(READ, WRITE, CREATE), ownerOnly());
+             var ignored = channel.lock()) {
+            if (channel.size() == 0) {
+                long size = HEADER_SIZE + (long) RECORDS * RECORD_SIZE;
+                var mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                mapped.putInt(H_RECORD_SIZE, RECORD_SIZE);
+                mapped.putInt(H_CAPACITY, RECORDS);
+                mapped.putLong(H_MAGIC, MAGIC);
+                mapped.force();
+            }
+            // read, not mapped: mapping a shorter file would grow it
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(header, 0) != HEADER_SIZE) return null;
+            int records = header.getInt(H_CAPACITY);
+            if (header.getLong(H_MAGIC) != MAGIC || header.getInt(H_RECORD_SIZE) != RECORD_SIZE || records <= 0
+                    || channel.size() != HEADER_SIZE + (long) records * RECORD_SIZE)
+                return null;
+
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            capacity = records;
+            return buffer;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lines may carry secrets, so a new file is readable by its owner only, as shells keep their history.
+     */
+    private FileAttribute<?>[] ownerOnly() {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) return new FileAttribute<?>[0];
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+    }
+
+    /**
+     * Writes the UTF-8 bytes of as many whole characters as fit, returns their count.
+     */
+    private static int encode(MappedByteBuffer buffer, int at, String text, int max) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = text.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (n + 4 > max) break;
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+                buffer.put(at + n++, (byte) (0xf0 | c >> 18));
+                buffer.put(at + n++, (byte) (0x80 | c >> 12 & 0x3f));
+                buffer.put(at + n++, (byte) (0x80 | c >> 6 & 0x3f));
+                buffer.put(at + n++, (byte) (0x80 | c & 0x3f));
+            } else if (c < 0x80 || Character.isSurrogate((char) c)) {
+                if (n + 1 > max) break;
+                buffer.put(at + n++, c < 0x80 ? (byte) c : (byte) '?');
+            } else if (c < 0x800) {
+                if (n + 2 > max) break;
+                buffer.put(at + n++, (byte) (0xc0 | c >> 6));
+                buffer.put(at + n++, (byte) (0x80 | c & 0x3f));
+            } else {
+                if (n + 3 > max) break;
+                buffer.put(at + n++, (byte) (0xe0 | c >> 12));
+                buffer.put(at + n++, (byte) (0x80 | c >> 6 & 0x3f));
+                buffer.put(at + n++, (byte) (0x80 | c & 0x3f));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The encoded length of the text, as {@link #encode} writes it.
+     */
+    static int encodedLength(String text) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += c < 0x80 || Character.isSurrogate(c) ? 1 : c < 0x800 ? 2 : 3;
+            }
+        }
+        return n;
+    }
+
+    private static String decode(MappedByteBuffer buffer, int at, int length) {
+        var bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    record Entry(long sequence, long start, long end, int status, int pid, long out, long err,
+                 boolean background, boolean truncated, String line, String directory, String binaries) {
+    }
+}
@@ -0,0 +1,365 @@
+package shell;
+
+import shell.Input.RedirectType;
+
+import java.util.function.Function;
+
+
+/**
+ * Single-pass tokenizer for a command line.
+ * <p>
+ * Tokens are pulled with {@link #next()}; the current token is described by
+ * its {@link Type}, its {@code [start, end)} offsets in the line and whether any
+ * part of it was quoted or escaped. The unquoted value of a word is decoded into
+ * one buffer that is reused for every token, so walking a line allocates nothing
+ * beyond the strings the caller asks for.
+ * <p>
+ * Quoting follows the POSIX rules: single quotes are literal, inside double
+ * quotes a backslash only escapes {@code \ $ " `} and newline, and adjacent
+ * quoted and unquoted parts form a single word.
+ * <p>
+ * When a variable lookup is given, {@code $NAME}, {@code ${NAME}} and {@code $?}
+ * are expanded outside single quotes while the word is decoded. The result is
+ * not split into fields, and an unquoted word that expands to nothing is dropped.
+ * <p>
+ * Alongside the value, a word is decoded into a glob {@link #pattern()} in which
+ * every quoted or escaped {@code * ? [ \} is escaped with {@code \}, and
+ * {@link #glob()} tells whether any unquoted wildcard was seen. Wildcards in an
+ * unquoted expansion count as unquoted, as in POSIX.
+ */
+final class Lexer {
+
+    enum Type {
+        WORD,
+        PIPE,
+        REDIRECT,
+        BACKGROUND,
+        /**
+         * {@code &&}
+         */
+        AND,
+        /**
+         * {@code ||}
+         */
+        OR,
+        /**
+         * A redirect to another descriptor: {@code >&N}, {@code N>&M}, {@code <&N} or {@code &>}.
+         */
+        DUPLICATE,
+    }
+
+    private final StringBuilder value = new StringBuilder();
+    private final StringBuilder pattern = new StringBuilder();
+    private final Function<String, String> variables;
+
+    private String line = "";
+    private int pos;
+
+    private Type type;
+    private int start;
+    private int end;
+    private boolean quoted;
+    private boolean escaped;
+    private boolean expanded;
+    private boolean glob;
+    private RedirectType redirect;
+
+    Lexer() {
+        this(null);
+    }
+
+    Lexer(Function<String, String> variables) {
+        this.variables = variables;
+    }
+
+    Lexer reset(String line) {
+        this.line = line;
+        this.pos = 0;
+        this.type = null;
+        return this;
+    }
+
+    /**
+     * Advances to the next token, returns false at the end of the line.
+     */
+    boolean next() {
+        do {
+            while (pos < line.length() && isBlank(line.charAt(pos))) pos++;
+            if (pos >= line.length()) return false;
+
+            start = pos;
+            value.setLength(0);
+            pattern.setLength(0);
+            quoted = escaped = expanded = glob = false;
+            redirect = null;
+
+            switch (line.charAt(pos)) {
+                case '|' -> {
+                    pos++;
+                    type = follows('|') ? Type.OR : Type.PIPE;
+                }
+                case '&' -> {
+                    pos++;
+                    if (follows('&')) {
+                        type = Type.AND;
+                    } else if (follows('>')) {
+                        follows('>');
+                        type = Type.DUPLICATE;
+                    } else {
+                        type = Type.BACKGROUND;
+                    }
+                }
+                case '>' -> redirect('1');
+                case '<' -> input();
+                default -> word();
+            }
+            end = pos;
+        } while (type == Type.WORD && expanded && !quoted && !escaped && value.isEmpty());
+        return true;
+    }
+
+    Type type() {
+        return type;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    boolean quoted() {
+        return quoted;
+    }
+
+    boolean escaped() {
+        return escaped;
+    }
+
+    RedirectType redirect() {
+        return redirect;
+    }
+
+    /**
+     * The decoded value of the current word, a view valid until the next call.
+     */
+    CharSequence value() {
+        return value;
+    }
+
+    String text() {
+        return value.toString();
+    }
+
+    /**
+     * Whether the current word has an unquoted {@code *}, {@code ?} or {@code [}.
+     */
+    boolean glob() {
+        return glob;
+    }
+
+    /**
+     * The current word as a glob pattern, quoted wildcards escaped with {@code \}.
+     */
+    String pattern() {
+        return pattern.toString();
+    }
+
+    private void word() {
+        type = Type.WORD;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            switch (c) {
+                case ' ', '\t', '|', '&', '<' -> {
+                    return;
+                }
+                case '>' -> {
+                    // "1>" and "2>" are operators only when the digit stands alone and unquoted
+                    if (pos == start + 1 && !quoted && !escaped && (line.charAt(start) == '1' || line.charAt(start) == '2')) {
+                        redirect(line.charAt(start));
+                        value.setLength(0);
+                        pattern.setLength(0);
+                    }
+                    return;
+                }
+                case '\\' -> {
+                    escaped = true;
+                    if (pos + 1 < line.length()) literal(line.charAt(pos + 1));
+                    pos += 2;
+                }
+                case '\'' -> {
+                    quoted = true;
+                    int close = line.indexOf('\'', pos + 1);
+                    if (close < 0) close = line.length();
+                    for (int i = pos + 1; i < close; i++) literal(line.charAt(i));
+                    pos = close + 1;
+                }
+                case '"' -> doubleQuoted();
+                case '$' -> expand(false);
+                default -> {
+                    unquoted(c);
+                    pos++;
+                }
+            }
+        }
+        pos = Math.min(pos, line.length());
+    }
+
+    private void doubleQuoted() {
+        quoted = true;
+        pos++;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (c == '"') {
+                pos++;
+                return;
+            }
+            if (c == '\\' && pos + 1 < line.length() && isEscapable(line.charAt(pos + 1))) {
+                escaped = true;
+                literal(line.charAt(pos + 1));
+                pos += 2;
+            } else if (c == '$') {
+                expand(true);
+            } else {
+                literal(c);
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Appends the value of the variable named after the {@code $} at the current
+     * position; a {@code $} which starts no name is kept literally.
+     */
+    private void expand(boolean inQuotes) {
+        int from = pos + 1, to = from;
+        if (variables != null && from < line.length()) {
+            char c = line.charAt(from);
+            if (c == '{') {
+                to = line.indexOf('}', from + 1);
+                if (to > from + 1) {
+                    append(line.substring(from + 1, to), inQuotes);
+                    pos = to + 1;
+                    return;
+                }
+            } else if (c == '?') {
+                append("?", inQuotes);
+                pos = from + 1;
+                return;
+            } else if (Character.isLetter(c) || c == '_') {
+                while (to < line.length() && (Character.isLetterOrDigit(line.charAt(to)) || line.charAt(to) == '_')) to++;
+                append(line.substring(from, to), inQuotes);
+                pos = to;
+                return;
+            }
+        }
+        literal('$');
+        pos++;
+    }
+
+    /**
+     * Appends the value of a variable; outside double quotes its wildcards
+     * take part in pathname expansion.
+     */
+    private void append(String name, boolean inQuotes) {
+        expanded = true;
+        var expansion = variables.apply(name);
+        if (expansion == null) return;
+        for (int i = 0; i < expansion.length(); i++) {
+            char c = expansion.charAt(i);
+            if (inQuotes || c == '\\') literal(c);
+            else unquoted(c);
+        }
+    }
+
+    private void unquoted(char c) {
+        value.append(c);
+        pattern.append(c);
+        glob |= c == '*' || c == '?' || c == '[';
+    }
+
+    private void literal(char c) {
+        value.append(c);
+        if (c == '*' || c == '?' || c == '[' || c == '\\') pattern.append('\\');
+        pattern.append(c);
+    }
+
+    private void redirect(char fd) {
+        type = Type.REDIRECT;
+        pos++;
+        boolean append = follows('>');
+        redirect = RedirectType.of(fd, append);
+        if (follows('&')) duplicate();
+    }
+
+    /**
+     * The descriptor after {@code >&} or {@code <&}, which makes the redirect a {@link Type#DUPLICATE}.
+     */
+    private void duplicate() {
+        type = Type.DUPLICATE;
+        redirect = null;
+        if (follows('-')) return;
+        while (pos < line.length() && Character.isDigit(line.charAt(pos))) pos++;
+    }
+
+    /**
+     * Consumes the character if it is the next one.
+     */
+    private boolean follows(char c) {
+        if (pos >= line.length() || line.charAt(pos) != c) return false;
+        pos++;
+        return true;
+    }
+
+    /**
+     * {@code <} reads a file, {@code <<} a here-document and {@code <<<} a here-string.
+     */
+    private void input() {
+        type = Type.REDIRECT;
+        int from = pos;
+        while (pos < line.length() && pos - from < 3 && line.charAt(pos) == '<') pos++;
+        redirect = switch (pos - from) {
+            case 1 -> RedirectType.REDIRECT_STDIN;
+            case 2 -> RedirectType.HERE_DOC;
+            default -> RedirectType.HERE_STRING;
+        };
+        if (redirect == RedirectType.REDIRECT_STDIN && follows('&')) duplicate();
+    }
+
+    /**
+     * Expands variables in the body of a here-document whose delimiter was not
+     * quoted: a backslash only escapes {@code \ $ `}, and a backslash before
+     * a newline joins the lines.
+     */
+    String document(String body) {
+        if (variables == null || body.indexOf('$') < 0 && body.indexOf('\\') < 0) return body;
+        var lexer = new Lexer(variables).reset(body);
+        return lexer.expandDocument();
+    }
+
+    private String expandDocument() {
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (c == '\\' && pos + 1 < line.length() && isEscapable(line.charAt(pos + 1)) && line.charAt(pos + 1) != '"') {
+                if (line.charAt(pos + 1) != '\n') value.append(line.charAt(pos + 1));
+                pos += 2;
+            } else if (c == '$') {
+                expand(true);
+            } else {
+                value.append(c);
+                pos++;
+            }
+        }
+        return value.toString();
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isEscapable(char c) {
+        return c == '\\' || c == '$' || c == '"' || c == '`' || c == '\n';
+    }
+}
@@ -1,8 +1,15 @@
 package shell;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.*;
@@ -10,21 +17,32 @@ import static java.nio.file.StandardOpenOption.*;
 
 record Output(Writer stdout, Writer stderr) implements AutoCloseable {
 
-    static Output of(Input input) throws IOException {
+    /**
+     * Opens the redirect targets of the input. A stream redirected more than
+     * once writes to every target, like zsh's {@code MULTIOS}.
+     */
+    static Output of(Input input, Path directory) throws IOException {
 
-        var stdout = DefaultWriter.INSTANCE;
-        var stderr = DefaultWriter.INSTANCE;
+        var stdout = new ArrayList<Writer>();
+        var stderr = new ArrayList<Writer>();
 
-        for (var redirect : input.redirects()) {
-            switch (redirect.type()) {
-                case APPEND_STDOUT -> stdout = new RedirectWriter(redirect.path(), true);
-                case APPEND_STDERR -> stderr = new RedirectWriter(redirect.path(), true);
-                case REDIRECT_STDOUT -> stdout = new RedirectWriter(redirect.path(), false);
-                case REDIRECT_STDERR -> stderr = new RedirectWriter(redirect.path(), false);
+        try {
+            for (var redirect : input.redirects()) {
+                switch (redirect.type()) {
+                    case APPEND_STDOUT -> stdout.add(new RedirectWriter(directory.resolve(redirect.target()), true));
+                    case APPEND_STDERR -> stderr.add(new RedirectWriter(directory.resolve(redirect.target()), true));
+                    case REDIRECT_STDOUT -> stdout.add(new RedirectWriter(directory.resolve(redirect.target()), false));
+                    case REDIRECT_STDERR -> stderr.add(new RedirectWriter(directory.resolve(redirect.target()), false));
+                }
             }
+        } catch (IOException e) {
+            for (var writer : stdout) writer.close();
+            for (var writer : stderr) writer.close();
+            throw e;
         }
 
-        return new Output(stdout, stderr);
+        return new Output(FanOutWriter.of(stdout, new CountingWriter(TerminalWriter.STDOUT)),
+                FanOutWriter.of(stderr, new CountingWriter(TerminalWriter.STDERR)));
     }
 
     void send(String line) throws IOException {
@@ -36,16 +54,22 @@ record Output(Writer stdout, Writer stderr) implements AutoCloseable {
     }
 
     void send(InputStream stream) throws IOException {
-        try (var reader = new BufferedReader(new InputStreamReader(stream))) {
-            String line;
-            while ((line = reader.readLine()) != null) send(line);
-        }
+        pump(stream, stdout);
     }
 
     void error(InputStream stream) throws IOException {
-        try (var reader = new BufferedReader(new InputStreamReader(stream))) {
-            String line;
-            while ((line = reader.readLine()) != null) error(line);
+        pump(stream, stderr);
+    }
+
+    /**
+     * Copies the stream to the writer chunk by chunk as soon as bytes arrive,
+     * without waiting for line boundaries.
+     */
+    private static void pump(InputStream stream, Writer writer) throws IOException {
+        try (stream) {
+            var buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) != -1) writer.write(buffer, 0, n);
         }
     }
 
@@ -59,20 +83,98 @@ record Output(Writer stdout, Writer stderr) implements AutoCloseable {
     public interface Writer extends AutoCloseable {
         void writeLine(String line) throws IOException;
 
+        void write(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Copies {@code count} bytes of a file, starting at {@code position}.
+         * Writers backed by a channel let the kernel move the bytes with
+         * {@link FileChannel#transferTo}, so they never enter the JVM heap.
+         */
+        default void transfer(FileChannel source, long position, long count) throws IOException {
+            var buffer = ByteBuffer.allocate(8192);
+            for (long end = position + count; position < end; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int n = source.read(buffer, position);
+                if (n < 0) return;
+                write(buffer.array(), 0, n);
+                position += n;
+            }
+        }
+
+        /**
+         * How a child process should be wired to this writer; anything
+         * but {@code PIPE} means the child writes to the target by itself.
+         */
+        default ProcessBuilder.Redirect redirect() {
+            return ProcessBuilder.Redirect.PIPE;
+        }
+
+        /**
+         * Bytes sent to the target so far, by the shell or by a child attached
+         * to it, or -1 if the writer doesn't keep count.
+         */
+        default long written() {
+            return -1;
+        }
+
         void close() throws IOException;
     }
 
-    static class RedirectWriter implements Writer {
-        private final BufferedWriter writer;
+    /**
+     * Moves bytes from the file to the channel until {@code count} bytes are
+     * sent or the file ends.
+     */
+    private static long transferTo(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = source.transferTo(position + sent, count - sent, target);
+            if (n <= 0) break;
+            sent += n;
+        }
+        return sent;
+    }
+
+    static class StreamWriter implements Writer {
+        private final OutputStream stream;
+        private final OutputStream writer;
+        private long written;
 
-        RedirectWriter(String path, boolean append) throws IOException {
-            writer = Files.newBufferedWriter(Path.of(path), UTF_8, WRITE, CREATE, append ? APPEND : TRUNCATE_EXISTING);
+        StreamWriter(OutputStream stream) {
+            this.stream = stream;
+            this.writer = new BufferedOutputStream(stream);
         }
 
         @Override
-        public void writeLine(String line) throws IOException {
-            writer.write(line);
+        public synchronized void writeLine(String line) throws IOException {
+            var bytes = line.getBytes(UTF_8);
+            writer.write(bytes);
             writer.write('\n');
+            written += bytes.length + 1;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            writer.write(buffer, offset, length);
+            written += length;
+        }
+
+        /**
+         * A pipe opened as a file stream, as {@link Spawn} hands them out, takes the
+         * bytes straight from the file.
+         */
+        @Override
+        public synchronized void transfer(FileChannel source, long position, long count) throws IOException {
+            if (!(stream instanceof FileOutputStream file)) {
+                Writer.super.transfer(source, position, count);
+                return;
+            }
+            writer.flush();
+            written += transferTo(source, position, count, file.getChannel());
+        }
+
+        @Override
+        public synchronized long written() {
+            return written;
         }
 
         @Override
@@ -81,16 +183,374 @@ record Output(Writer stdout, Writer stderr) implements AutoCloseable {
         }
     }
 
-    static class DefaultWriter implements Writer {
-        static final Writer INSTANCE = new DefaultWriter();
+    /**
+     * Sends everything written to several writers, as {@code tee} does.
+     * <p>
+     * A chunk is handed to every sink as it is, each sink buffering it in its
+     * own buffer. Chunks of {@link #PARALLEL_BYTES} or more, and file transfers,
+     * go to the sinks in parallel on virtual threads, so a slow terminal doesn't
+     * hold back a file; the call returns when every sink has the chunk, which
+     * keeps the order of chunks in each sink. With a single CPU there is nothing
+     * to gain and every sink is written in turn. The output of an external command
+     * passes through the JVM, as the child can only be attached to one target.
+     */
+    static class FanOutWriter implements Writer {
+        static final int PARALLEL_BYTES = 32 * 1024;
+        private static final boolean PARALLEL = Runtime.getRuntime().availableProcessors() > 1;
+
+        private final List<Writer> sinks;
+
+        FanOutWriter(List<Writer> sinks) {
+            this.sinks = List.copyOf(sinks);
+        }
+
+        /**
+         * The only writer of the list, a fan-out over all of them, or the fallback if there are none.
+         */
+        static Writer of(List<Writer> writers, Writer fallback) {
+            return switch (writers.size()) {
+                case 0 -> fallback;
+                case 1 -> writers.getFirst();
+                default -> new FanOutWriter(writers);
+            };
+        }
+
+        @Override
+        public synchronized void writeLine(String line) throws IOException {
+            for (var sink : sinks) sink.writeLine(line);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            if (length < PARALLEL_BYTES) {
+                for (var sink : sinks) sink.write(buffer, offset, length);
+            } else {
+                parallel(sink -> sink.write(buffer, offset, length));
+            }
+        }
+
+        /**
+         * Every sink reads the file at its own position, so they copy it in parallel.
+         */
+        @Override
+        public synchronized void transfer(FileChannel source, long position, long count) throws IOException {
+            parallel(sink -> sink.transfer(source, position, count));
+        }
+
+        /**
+         * Every sink gets the same bytes, the first one counts them.
+         */
+        @Override
+        public long written() {
+            return sinks.getFirst().written();
+        }
+
+        @Override
+        public void close() throws IOException {
+            parallel(Writer::close);
+        }
+
+        /**
+         * Runs the action for the first sink on this thread and for the others
+         * on virtual threads, then throws the first failure; every sink gets
+         * the action even if another one fails.
+         */
+        private void parallel(SinkAction action) throws IOException {
+            var failures = new IOException[sinks.size()];
+            if (!PARALLEL) {
+                for (int i = 0; i < sinks.size(); i++) {
+                    try {
+                        action.apply(sinks.get(i));
+                    } catch (IOException e) {
+                        failures[i] = e;
+                    }
+                }
+                rethrow(failures);
+                return;
+            }
+            var threads = new Thread[sinks.size()];
+            for (int i = 1; i < sinks.size(); i++) {
+                var sink = sinks.get(i);
+                int slot = i;
+                threads[i] = Thread.ofVirtual().name("fan-out").start(() -> {
+                    try {
+                        action.apply(sink);
+                    } catch (IOException e) {
+                        failures[slot] = e;
+                    }
+                });
+            }
+            try {
+                action.apply(sinks.getFirst());
+            } catch (IOException e) {
+                failures[0] = e;
+            }
+            try {
+                for (int i = 1; i < threads.length; i++) threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            rethrow(failures);
+        }
+
+        private static void rethrow(IOException[] failures) throws IOException {
+            for (var failure : failures)
+                if (failure != null) throw failure;
+        }
+
+        @FunctionalInterface
+        private interface SinkAction {
+            void apply(Writer sink) throws IOException;
+        }
+    }
+
+    /**
+     * Writes builtin output to a file through a {@link FileChannel}, as raw bytes.
+     * External commands get the file attached directly via {@link #redirect()},
+     * so their output never passes through the JVM.
+     */
+    static class RedirectWriter implements Writer {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private final FileChannel channel;
+        private final Path path;
+        private final long start;
+        private long written;
+
+        RedirectWriter(Path path, boolean append) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(this.path, WRITE, CREATE, append ? APPEND : TRUNCATE_EXISTING);
+            this.start = channel.size();
+        }
+
+        @Override
+        public synchronized void writeLine(String line) throws IOException {
+            var bytes = line.getBytes(UTF_8);
+            write(bytes, 0, bytes.length);
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) '\n');
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.remaining()) flush();
+            if (length > buffer.capacity()) {
+                drain(ByteBuffer.wrap(bytes, offset, length));
+            } else {
+                buffer.put(bytes, offset, length);
+            }
+        }
 
         @Override
-        public void writeLine(String line) {
-            System.out.println(line);
+        public synchronized void transfer(FileChannel source, long position, long count) throws IOException {
+            flush();
+            transferTo(source, position, count, channel);
         }
 
+        /**
+         * The file was created or truncated when this writer was opened,
+         * so the child appends to it.
+         */
         @Override
-        public void close() {
+        public ProcessBuilder.Redirect redirect() {
+            return ProcessBuilder.Redirect.appendTo(path.toFile());
+        }
+
+        /**
+         * Counts what the file grew by, as a child appends to it behind this writer's back.
+         */
+        @Override
+        public synchronized long written() {
+            if (!channel.isOpen()) return written;
+            try {
+                return channel.size() - start + buffer.position();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            written = written();
+            try (channel) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            drain(buffer.flip());
+            buffer.clear();
+        }
+
+        private void drain(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+    }
+
+    /**
+     * Counts what one command writes to a shared writer.
+     */
+    static final class CountingWriter implements Writer {
+        private final Writer writer;
+        private long written;
+
+        CountingWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void writeLine(String line) throws IOException {
+            writer.writeLine(line);
+            written += Journal.encodedLength(line) + 1;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            writer.write(buffer, offset, length);
+            written += length;
+        }
+
+        @Override
+        public synchronized void transfer(FileChannel source, long position, long count) throws IOException {
+            writer.transfer(source, position, count);
+            written += Math.max(0, Math.min(count, source.size() - position));
+        }
+
+        @Override
+        public ProcessBuilder.Redirect redirect() {
+            return writer.redirect();
+        }
+
+        @Override
+        public synchronized long written() {
+            return written;
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Terminal writer backed by a reusable direct buffer on the stdout or stderr
+     * channel. Output is flushed when the buffer fills up, when bytes have been
+     * pending for {@link #FLUSH_DELAY_MS}, when a command completes and before
+     * the prompt is painted.
+     * <p>
+     * Both writers share one lock, and writing to one first flushes whatever is
+     * pending in the other, so stdout and stderr keep their relative order.
+     */
+    static final class TerminalWriter implements Writer {
+        static final TerminalWriter STDOUT = new TerminalWriter(FileDescriptor.out, 64 * 1024);
+        static final TerminalWriter STDERR = new TerminalWriter(FileDescriptor.err, 4 * 1024);
+
+        private static final long FLUSH_DELAY_MS = 20;
+        private static final byte[] NEW_LINE = {'\n'};
+
+        private static volatile long flushes;
+        private static final Object LOCK = new Object();
+        private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("terminal-flusher").daemon().factory());
+
+        private final ByteBuffer buffer;
+        private final FileChannel channel;
+        private boolean scheduled;
+
+        private TerminalWriter(FileDescriptor fd, int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.channel = new FileOutputStream(fd).getChannel();
+        }
+
+        /**
+         * Counts flushes which actually wrote bytes, so the line reader can tell
+         * that something, like a background job, printed over its prompt.
+         */
+        static long flushes() {
+            return flushes;
+        }
+
+        static void flushAll() throws IOException {
+            synchronized (LOCK) {
+                STDOUT.flush();
+                STDERR.flush();
+            }
+        }
+
+        @Override
+        public void writeLine(String line) throws IOException {
+            var bytes = line.getBytes(UTF_8);
+            synchronized (LOCK) {
+                put(bytes, 0, bytes.length);
+                put(NEW_LINE, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (LOCK) {
+                put(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void transfer(FileChannel source, long position, long count) throws IOException {
+            synchronized (LOCK) {
+                peer().flush();
+                flush();
+                transferTo(source, position, count, channel);
+                flushes++;
+            }
+        }
+
+        /**
+         * Terminal writers are shared, closing just pushes out what is pending.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (LOCK) {
+                flush();
+            }
+        }
+
+        private void put(byte[] bytes, int offset, int length) throws IOException {
+            peer().flush();
+            while (length > 0) {
+                if (!buffer.hasRemaining()) flush();
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+            if (buffer.position() > 0 && !scheduled) {
+                scheduled = true;
+                FLUSHER.schedule(this::flushPending, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void flushPending() {
+            synchronized (LOCK) {
+                scheduled = false;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    // terminal is gone, nothing left to report to
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffer.position() == 0) return;
+            // the line reader paints through System.out, keep its bytes in front
+            System.out.flush();
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+            flushes++;
+        }
+
+        private TerminalWriter peer() {
+            return this == STDOUT ? STDERR : STDOUT;
         }
     }
 }
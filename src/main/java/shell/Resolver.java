@@ -0,0 +1,113 @@
+package shell;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Resolves command names against PATH and remembers the result,
+ * much like the bash command hash table.
+ * <p>
+ * A cached entry costs a single stat to validate; entries whose file is gone
+ * are dropped and looked up again, and the whole table is discarded as soon
+ * as the PATH value differs from the one it was filled under.
+ */
+class Resolver {
+
+    private final ConcurrentMap<String, Entry> table = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final Session session;
+    private volatile String path;
+
+    Resolver(Session session) {
+        this.session = session;
+    }
+
+    Optional<Path> resolve(String command) {
+        if (command.contains("/")) {
+            return Optional.of(session.pwd().resolve(command)).filter(Files::isExecutable);
+        }
+        invalidateOnPathChange();
+
+        var entry = table.get(command);
+        if (entry != null && Files.isExecutable(entry.path)) {
+            entry.hits.incrementAndGet();
+            hits.increment();
+            return Optional.of(entry.path);
+        }
+
+        misses.increment();
+        return hash(command);
+    }
+
+    /**
+     * Searches PATH for the command, bypassing the table, and stores the result.
+     */
+    Optional<Path> hash(String command) {
+        invalidateOnPathChange();
+
+        var found = search(command, path);
+        if (found.isPresent()) table.put(command, new Entry(found.get()));
+        else table.remove(command);
+        return found;
+    }
+
+    boolean forget(String command) {
+        return table.remove(command) != null;
+    }
+
+    void clear() {
+        table.clear();
+    }
+
+    Map<String, Entry> entries() {
+        return new TreeMap<>(table);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private void invalidateOnPathChange() {
+        var current = session.variable("PATH");
+        if (!Objects.equals(current, path)) {
+            table.clear();
+            path = current;
+        }
+    }
+
+    private static Optional<Path> search(String command, String path) {
+        if (path == null) return Optional.empty();
+        for (var directory : path.split(":")) {
+            if (directory.isEmpty()) continue;
+            var candidate = Paths.get(directory, command);
+            if (Files.isExecutable(candidate) && !Files.isDirectory(candidate))
+                return Optional.of(candidate.toAbsolutePath());
+        }
+        return Optional.empty();
+    }
+
+    static final class Entry {
+        final Path path;
+        final AtomicInteger hits = new AtomicInteger();
+
+        Entry(Path path) {
+            this.path = path;
+        }
+    }
+}
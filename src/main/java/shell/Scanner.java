@@ -2,6 +2,7 @@ package shell;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.FieldOrder;
 import shell.Scanner.Lifecycle.NativeLibrary.Termios;
@@ -9,7 +10,12 @@ import shell.Scanner.Lifecycle.NativeLibrary.Termios;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static shell.Scanner.KeyCodes.*;
@@ -18,41 +24,110 @@ import static shell.Scanner.Lifecycle.Constants.*;
 public class Scanner {
 
     private final Lifecycle lifecycle = new Lifecycle();
+    private final Renderer renderer = new Renderer(System.out);
+    private final Keys keys = new Keys(new InputStreamReader(System.in, UTF_8));
+    private final History history = History.open(History.defaultFile());
+    private final FileSuggest files = new FileSuggest();
     private final Suggest suggest;
+    private final Session session;
 
-    public Scanner(Suggest suggest) {
+    /**
+     * The lines of a multi-line paste still to be run, and the text after its
+     * last line break, which the next line starts with.
+     */
+    private final Deque<String> pastedLines = new ArrayDeque<>();
+    private String pastedTail = "";
+
+    public Scanner(Suggest suggest, Session session) {
         this.suggest = suggest;
+        this.session = session;
+        if (Boolean.getBoolean("shell.render.stats"))
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(renderer.stats())));
     }
 
     public String readLine() throws IOException {
         lifecycle.beforeInput();
         try {
-            return new ConsoleReader().readLine();
+            var line = reader(ConsoleReader.PROMPT).readLine();
+            history.add(line);
+            return line;
+        } finally {
+            lifecycle.afterInput();
+        }
+    }
+
+    /**
+     * Reads a line which continues the previous one, such as a here-document
+     * line, behind the {@code > } prompt and without adding it to the history.
+     */
+    public String readContinuation() throws IOException {
+        lifecycle.beforeInput();
+        try {
+            return reader(ConsoleReader.CONTINUATION_PROMPT).readLine();
         } finally {
             lifecycle.afterInput();
         }
     }
 
+    /**
+     * A reader for the next line: the next pasted line, shown as if it had
+     * been typed and entered, or a line to edit.
+     */
+    private ConsoleReader reader(String prompt) throws IOException {
+        if (!pastedLines.isEmpty()) return new ConsoleReader(prompt, pastedLines.poll(), true);
+        var tail = pastedTail;
+        pastedTail = "";
+        return new ConsoleReader(prompt, tail, false);
+    }
+
     private class ConsoleReader {
 
-        static final InputStreamReader reader = new InputStreamReader(System.in, UTF_8);
+        static final String PROMPT = "$ ";
+        static final String CONTINUATION_PROMPT = "> ";
+        static final String PASTE_END = "\033[201~";
+        static final String SEARCH_PROMPT = "(reverse-i-search)`%s': ";
+        static final String FAILED_SEARCH_PROMPT = "(failed reverse-i-search)`%s': ";
+
+        /**
+         * Number of options listed without asking first, bash's {@code completion-query-items}.
+         */
+        static final int QUERY_ITEMS = Integer.getInteger("shell.completion.query", 100);
+
         static final PrintStream printer = System.out;
 
+        final String prompt;
         final StringBuilder sb = new StringBuilder();
 
         boolean done = false;
         int cursor = 0;
+        long flushes = Output.TerminalWriter.flushes();
+
+        // history navigation: entry is -1 while editing the live line
+        int entry = -1;
+        String draft = "";
+
+        // reverse incremental search: query is null outside of search,
+        // matches holds the match of every prefix of the query, NOT_FOUND once it failed
+        String query;
+        int match = History.NOT_FOUND;
+        final List<Integer> matches = new ArrayList<>();
 
 
-        ConsoleReader() {
+        ConsoleReader(String prompt, String text, boolean done) throws IOException {
+            this.prompt = prompt;
+            this.done = done;
+            insert(text);
+            renderer.invalidate();
             paint();
+            Startup.firstPaint();
         }
 
         String readLine() throws IOException {
 
             while (!done) {
-                onKeyDown(reader.read());
-                paint();
+                onKeyDown(keys.next());
+                // typed-ahead keys are applied first and painted as one frame
+                if (done || !keys.hasBuffered()) paint();
             }
 
             newLine();
@@ -60,48 +135,26 @@ public class Scanner {
         }
 
         private void onKeyDown(int key) throws IOException {
+            if (query != null && onSearchKey(key)) return;
+
             switch (key) {
                 case BACKSPACE -> {
                     if (cursor > 0)
                         sb.deleteCharAt(--cursor);
                 }
                 case '\n' -> done = true;
-                case TAB -> {
-                    var token = sb.substring(0, cursor);
-                    var suggestion = suggest.suggest(token);
-
-                    switch (suggestion.count()) {
-                        case 0 -> bell();
-                        case 1 -> {
-                            var first = suggestion.firstOption();
-                            var suffix = first.substring(token.length());
-                            sb.insert(cursor, suffix + ' ');
-                            cursor += suffix.length() + 1;
-                        }
-                        default -> {
-                            bell();
-
-                            var prefix = suggestion.longestCommonPrefix();
-                            var suffix = prefix.substring(token.length());
-                            sb.insert(cursor, suffix);
-                            cursor += suffix.length();
-                            paint();
-
-                            int nextKey = reader.read();
-                            if (nextKey == TAB) {
-                                newLine();
-                                var all = String.join("  ", suggestion.suggestOptions());
-                                printer.print(all);
-                                newLine();
-                            } else {
-                                onKeyDown(nextKey);
-                            }
-                        }
-                    }
+                case CTRLR -> {
+                    query = "";
+                    matches.clear();
                 }
+                case TAB -> complete();
                 case ESCAPE -> {
-                    if (reader.read() == '[') {
-                        switch (reader.read()) {
+                    if (keys.next() == '[') {
+                        switch (keys.next()) {
+                            case PASTE -> {
+                                if (keys.next() == '0' && keys.next() == '0' && keys.next() == '~')
+                                    paste();
+                            }
                             case CURSOR_LEFT -> {
                                 if (cursor > 0)
                                     cursor--;
@@ -110,6 +163,8 @@ public class Scanner {
                                 if (cursor < sb.length())
                                     cursor++;
                             }
+                            case CURSOR_UP -> recall(-1);
+                            case CURSOR_DOWN -> recall(1);
                         }
                     }
                 }
@@ -128,12 +183,220 @@ public class Scanner {
             }
         }
 
-        private void paint() {
-            printer.print("\033[2K\033[G");
-            printer.print("$ ");
-            printer.print(sb);
-            printer.print("\033[G");
-            printer.print("\033[C".repeat(cursor + 2));
+        /**
+         * Completes the word under the cursor: a command name in command position,
+         * at the start of the line or of a pipeline stage, a file name anywhere
+         * else or when the word contains a {@code /}.
+         */
+        private void complete() throws IOException {
+            int start = FileSuggest.wordStart(sb, cursor);
+            var word = FileSuggest.unescape(sb.substring(start, cursor));
+            var command = FileSuggest.isCommandPosition(sb, start) && word.indexOf('/') < 0;
+            var suggestion = command ? suggest.suggest(word) : files.suggest(word, session.pwd());
+
+            switch (suggestion.count()) {
+                case 0 -> bell();
+                case 1 -> {
+                    var first = suggestion.firstOption();
+                    // a directory stays open for the next name
+                    insert(FileSuggest.escape(first.substring(word.length())) + (first.endsWith("/") ? "" : " "));
+                }
+                default -> {
+                    bell();
+
+                    var prefix = suggestion.longestCommonPrefix();
+                    insert(FileSuggest.escape(prefix.substring(word.length())));
+                    paint();
+
+                    int nextKey = keys.next();
+                    if (nextKey == TAB) {
+                        newLine();
+                        list(suggestion.suggestOptions());
+                        renderer.invalidate();
+                    } else {
+                        onKeyDown(nextKey);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Prints the options in columns, a screen at a time, the way bash does:
+         * above {@link #QUERY_ITEMS} options it asks first, and a full screen waits
+         * at {@code --More--}. Options are read a page at a time from the lazy
+         * result, so the work follows what is shown, not how many options match.
+         */
+        private void list(List<String> options) throws IOException {
+            int count = options.size();
+            if (count > QUERY_ITEMS) {
+                printer.print("Display all %d possibilities? (y or n)".formatted(count));
+                int answer = keys.next();
+                newLine();
+                if (answer != 'y' && answer != 'Y' && answer != ' ') return;
+            }
+
+            var size = lifecycle.windowSize();
+            int rows = size[0] - 1, columns = size[1];
+            for (int from = 0; from < count; ) {
+                // the widest option of what could fit decides the layout of this screen
+                var candidates = options.subList(from, Math.min(count, from + rows * Math.max(1, columns / 3)));
+                var names = new String[candidates.size()];
+                int width = 1;
+                for (int i = 0; i < names.length; i++) {
+                    var option = candidates.get(i);
+                    names[i] = option.substring(option.lastIndexOf('/', option.length() - 2) + 1);
+                    width = Math.max(width, names[i].length());
+                }
+                int perLine = Math.max(1, (columns + 2) / (width + 2));
+                int shown = Math.min(names.length, rows * perLine);
+                int lines = (shown + perLine - 1) / perLine;
+
+                var page = new StringBuilder();
+                for (int line = 0; line < lines; line++) {
+                    for (int i = line; i < shown; i += lines) {
+                        page.append(names[i]);
+                        if (i + lines < shown) page.repeat(' ', width + 2 - names[i].length());
+                    }
+                    page.append("\n\r");
+                }
+                printer.print(page);
+                from += shown;
+
+                if (from < count) {
+                    printer.print("--More--");
+                    int key = keys.next();
+                    printer.print("\r\033[K");
+                    if (key != ' ' && key != '\n' && key != 'y') return;
+                }
+            }
+        }
+
+        private void insert(String text) {
+            sb.insert(cursor, text);
+            cursor += text.length();
+        }
+
+        private void paint() throws IOException {
+            Output.TerminalWriter.flushAll();
+            if (Output.TerminalWriter.flushes() != flushes) {
+                flushes = Output.TerminalWriter.flushes();
+                renderer.invalidate();
+            }
+            if (query == null) {
+                renderer.render(prompt, sb, cursor);
+            } else {
+                var found = match == History.NOT_FOUND ? "" : history.get(match);
+                var search = failing() ? FAILED_SEARCH_PROMPT : SEARCH_PROMPT;
+                renderer.render(search.formatted(query), found, Math.max(found.indexOf(query), 0));
+            }
+        }
+
+        private void recall(int step) {
+            int size = history.size();
+            if (entry < 0) entry = size;
+
+            int next = entry + step;
+            if (next < 0 || next > size) {
+                bell();
+                return;
+            }
+            if (entry == size) draft = sb.toString();
+            entry = next;
+            replace(entry == size ? draft : history.get(entry));
+        }
+
+        /**
+         * Handles a key while searching. Returns false when the key ends the search
+         * and should also be processed as a regular key, like Enter or arrows.
+         * <p>
+         * A longer query resumes from the current match, and Backspace goes back
+         * to the match of the shorter query, so one search scans the history at
+         * most once. Once a query fails, longer ones can't match either and are
+         * not searched for; the failed search shows no match.
+         */
+        private boolean onSearchKey(int key) {
+            switch (key) {
+                case CTRLR -> {
+                    int from = match == History.NOT_FOUND ? history.size() - 1 : match - 1;
+                    if (failing()) bell();
+                    else if (matches.isEmpty()) search(from);
+                    else matches.set(matches.size() - 1, search(from));
+                }
+                case CTRLG -> query = null;
+                case BACKSPACE -> {
+                    if (!query.isEmpty()) {
+                        query = query.substring(0, query.length() - 1);
+                        matches.removeLast();
+                        match = matches.isEmpty() ? History.NOT_FOUND : matches.getLast();
+                    }
+                }
+                default -> {
+                    if (key < ' ') {
+                        if (match != History.NOT_FOUND) replace(history.get(match));
+                        query = null;
+                        match = History.NOT_FOUND;
+                        return false;
+                    }
+                    boolean failed = failing();
+                    query += (char) key;
+                    if (failed) bell();
+                    matches.add(failed ? History.NOT_FOUND : search(match == History.NOT_FOUND ? history.size() - 1 : match));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Searches from the given entry down, makes the result the current
+         * match and returns it; a miss rings the bell.
+         */
+        private int search(int from) {
+            match = from < 0 ? History.NOT_FOUND : history.search(query, from);
+            if (match == History.NOT_FOUND) bell();
+            return match;
+        }
+
+        private boolean failing() {
+            return !query.isEmpty() && match == History.NOT_FOUND;
+        }
+
+        private void replace(String line) {
+            sb.setLength(0);
+            sb.append(line);
+            cursor = sb.length();
+        }
+
+        /**
+         * Reads a bracketed paste up to its end marker and inserts it as a single edit.
+         * <p>
+         * Pasted lines run in order, as in bash: a line break ends the current
+         * line, the lines in between run as they were pasted, and the text after
+         * the last break, with the rest of the current line, starts the next one.
+         */
+        private void paste() throws IOException {
+            var pasted = new StringBuilder();
+            int key, previous = -1;
+            while ((key = keys.next()) != -1) {
+                // a \r\n is a single line break
+                if (key != '\n' || previous != '\r') pasted.append(key == '\r' ? '\n' : (char) key);
+                previous = key;
+                int end = pasted.length() - PASTE_END.length();
+                if (end >= 0 && pasted.indexOf(PASTE_END, end) == end) {
+                    pasted.setLength(end);
+                    break;
+                }
+            }
+            var lines = pasted.toString().split("\n", -1);
+            if (lines.length == 1) {
+                insert(lines[0]);
+                return;
+            }
+            var rest = sb.substring(cursor);
+            sb.setLength(cursor);
+            insert(lines[0]);
+            pastedLines.addAll(Arrays.asList(lines).subList(1, lines.length - 1));
+            pastedTail = lines[lines.length - 1] + rest;
+            done = true;
         }
 
         private void newLine() {
@@ -145,6 +408,104 @@ public class Scanner {
         }
     }
 
+    /**
+     * Paints the prompt line by diffing the new frame against the previous one:
+     * only the changed tail is rewritten and the cursor is placed with absolute
+     * column moves, all in a single write per frame. The screen state is unknown
+     * after anything else prints, so the next frame is then painted in full.
+     */
+    static class Renderer {
+        private final StringBuilder out = new StringBuilder();
+        private final PrintStream printer;
+
+        private String frame;
+        private int column;
+
+        private long frames;
+        private long bytes;
+
+        Renderer(PrintStream printer) {
+            this.printer = printer;
+        }
+
+        void render(String prompt, CharSequence buffer, int cursor) {
+            var next = prompt + buffer;
+            int target = prompt.length() + cursor;
+
+            out.setLength(0);
+            if (frame == null) {
+                out.append("\033[2K\033[G").append(next);
+                column = next.length();
+            } else if (!frame.equals(next)) {
+                int common = commonPrefix(frame, next);
+                moveTo(common);
+                out.append(next, common, next.length());
+                if (next.length() < frame.length()) out.append("\033[K");
+                column = next.length();
+            }
+            moveTo(target);
+            frame = next;
+
+            var data = out.toString().getBytes(UTF_8);
+            printer.write(data, 0, data.length);
+            printer.flush();
+
+            frames++;
+            bytes += data.length;
+        }
+
+        void invalidate() {
+            frame = null;
+        }
+
+        String stats() {
+            return "render: %d frames, %d bytes, %.1f bytes/keystroke"
+                    .formatted(frames, bytes, frames == 0 ? 0.0 : (double) bytes / frames);
+        }
+
+        private void moveTo(int target) {
+            if (column == target) return;
+            out.append("\033[").append(target + 1).append('G');
+            column = target;
+        }
+
+        private static int commonPrefix(String a, String b) {
+            int limit = Math.min(a.length(), b.length()), i = 0;
+            while (i < limit && a.charAt(i) == b.charAt(i)) i++;
+            return i;
+        }
+    }
+
+    /**
+     * Decodes input in bulk: a single read drains everything the terminal has
+     * delivered so far, so pastes and typed-ahead keys are not read char by char.
+     * Leftover keys carry over to the next line.
+     */
+    static class Keys {
+        private final char[] chunk = new char[8192];
+        private final Reader reader;
+
+        private int pos;
+        private int limit;
+
+        Keys(Reader reader) {
+            this.reader = reader;
+        }
+
+        int next() throws IOException {
+            if (pos == limit) {
+                pos = 0;
+                limit = Math.max(reader.read(chunk, 0, chunk.length), 0);
+                if (limit == 0) return -1;
+            }
+            return chunk[pos++];
+        }
+
+        boolean hasBuffered() {
+            return pos < limit;
+        }
+    }
+
     interface KeyCodes {
         int ESCAPE = 27;
         int BACKSPACE = 127;
@@ -152,38 +513,64 @@ public class Scanner {
         int CURSOR_LEFT = 68;
         int CURSOR_RIGHT = 67;
         int CTRLC = 3;
+        int CTRLG = 7;
+        int CTRLR = 18;
+        int CURSOR_UP = 65;
+        int CURSOR_DOWN = 66;
+        int PASTE = '2';
     }
 
     static class Lifecycle {
 
-        private final Termios original = new Termios();
+        private final Termios original;
         private final Termios patched;
 
         Lifecycle() {
-            NativeLibrary.INSTANCE.tcgetattr(TCSAFLUSH, original);
+            long begin = Startup.begin();
+            var library = NativeLibrary.INSTANCE;
+            original = new Termios();
+            Startup.end("jna load", begin);
+
+            begin = Startup.begin();
+            library.tcgetattr(TCSAFLUSH, original);
+            Startup.end("termios", begin);
+
             Runtime.getRuntime().addShutdownHook(new Thread(this::afterInput));
             patched = createPatch();
         }
 
         void beforeInput() {
             NativeLibrary.INSTANCE.tcsetattr(TCSAFLUSH, STDIN_FILENO, patched);
+            System.out.print(BRACKETED_PASTE_ON);
+        }
+
+        /**
+         * Rows and columns of the terminal, 24 by 80 when it can't tell.
+         */
+        int[] windowSize() {
+            var size = new NativeLibrary.Winsize();
+            if (NativeLibrary.INSTANCE.ioctl(STDOUT_FILENO, new NativeLong(TIOCGWINSZ), size) != 0 || size.ws_col <= 0)
+                return new int[]{24, 80};
+            return new int[]{Math.max(size.ws_row, 2), size.ws_col};
         }
 
         void afterInput() {
             NativeLibrary.INSTANCE.tcsetattr(TCSAFLUSH, STDIN_FILENO, original);
+            System.out.print(BRACKETED_PASTE_OFF);
+            System.out.flush();
         }
 
         /**
          * Creates a patched copy of the Termios structure
          * by modifying specific flags to something like the "raw" mode:
          * input is available character by character, echoing is disabled,
-         * and all special processing of terminal input and output characters
-         * is disabled.
+         * and all special processing of terminal input characters is disabled.
+         * Output processing stays on, so the newlines of background jobs and
+         * notifications printed while the prompt is up still return the carriage.
          */
         private Termios createPatch() {
             var copy = Termios.of(original);
             copy.c_iflag &= ~(IGNBRK | BRKINT | PARMRK | ISTRIP | INLCR | IGNCR | ICRNL | IXON);
-            copy.c_oflag &= ~(OPOST);
             copy.c_lflag &= ~(ECHO | ECHONL | ICANON | ISIG | IEXTEN);
             copy.c_cflag &= ~(CSIZE | PARENB);
             copy.c_cflag |= ~CS8;
@@ -198,6 +585,10 @@ public class Scanner {
 
             int tcsetattr(int fd, int optional_actions, Termios termios);
 
+            int getrusage(int who, Rusage usage);
+
+            int ioctl(int fd, NativeLong request, Winsize size);
+
 
             @FieldOrder(value = {"c_iflag", "c_oflag", "c_cflag", "c_lflag", "c_line", "c_cc", "c_ispeed", "c_ospeed"})
             class Termios extends Structure {
@@ -241,11 +632,63 @@ public class Scanner {
                             '}';
                 }
             }
+
+            @FieldOrder(value = {"ws_row", "ws_col", "ws_xpixel", "ws_ypixel"})
+            class Winsize extends Structure {
+                public short ws_row;
+                public short ws_col;
+                public short ws_xpixel;
+                public short ws_ypixel;
+            }
+
+            /**
+             * {@code struct rusage} of LP64 Linux: two timevals followed by fourteen longs.
+             */
+            @FieldOrder(value = {"ru_utime_sec", "ru_utime_usec", "ru_stime_sec", "ru_stime_usec",
+                    "ru_maxrss", "ru_ixrss", "ru_idrss", "ru_isrss", "ru_minflt", "ru_majflt", "ru_nswap",
+                    "ru_inblock", "ru_oublock", "ru_msgsnd", "ru_msgrcv", "ru_nsignals", "ru_nvcsw", "ru_nivcsw"})
+            class Rusage extends Structure {
+                public long ru_utime_sec;
+                public long ru_utime_usec;
+                public long ru_stime_sec;
+                public long ru_stime_usec;
+                public long ru_maxrss;
+                public long ru_ixrss;
+                public long ru_idrss;
+                public long ru_isrss;
+                public long ru_minflt;
+                public long ru_majflt;
+                public long ru_nswap;
+                public long ru_inblock;
+                public long ru_oublock;
+                public long ru_msgsnd;
+                public long ru_msgrcv;
+                public long ru_nsignals;
+                public long ru_nvcsw;
+                public long ru_nivcsw;
+
+                public long userMicros() {
+                    return ru_utime_sec * 1_000_000 + ru_utime_usec;
+                }
+
+                public long systemMicros() {
+                    return ru_stime_sec * 1_000_000 + ru_stime_usec;
+                }
+            }
         }
 
         interface Constants {
+            String BRACKETED_PASTE_ON = "\033[?2004h";
+            String BRACKETED_PASTE_OFF = "\033[?2004l";
+
             int TCSAFLUSH = 2;
             int STDIN_FILENO = 0;
+            int STDOUT_FILENO = 1;
+            long TIOCGWINSZ = 0x5413;
+
+            // getrusage
+            int RUSAGE_SELF = 0;
+            int RUSAGE_CHILDREN = -1;
 
             // c_iflag
             int IGNBRK = 1;
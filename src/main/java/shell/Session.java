@@ -1,19 +1,154 @@
 package shell;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * Shell variables, seeded from the environment the shell was started with.
+ * <p>
+ * Exported variables form the environment of child processes; every change
+ * to one of them bumps a version, and {@link #environment()} rebuilds its
+ * snapshot only when the version has moved.
+ */
 public class Session {
 
     private final ConcurrentMap<String, Object> state = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Consumer<Object>>> listeners = new ConcurrentHashMap<>();
+    private final Set<String> exported = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger changes = new AtomicInteger();
+    private final Resolver resolver = new Resolver(this);
+    private final Jobs jobs = new Jobs();
+    private final Journal journal = Journal.open(Journal.defaultFile());
+
+    /**
+     * Status of the builtin pipeline stage running on the thread, see {@link #stage}.
+     */
+    private final ThreadLocal<int[]> stageStatus = new ThreadLocal<>();
+
+    private volatile Environment environment;
+
+    public Session() {
+        state.putAll(System.getenv());
+        exported.addAll(System.getenv().keySet());
+        state.put("PWD", Paths.get("").toAbsolutePath());
+        exported.add("PWD");
+    }
 
     @SuppressWarnings("unchecked")
     public <T> T get(String key, T defaultValue) {
-        if (!state.containsKey(key)) return defaultValue;
-        return (T) state.get(key);
+        var value = state.get(key);
+        return value == null ? defaultValue : (T) value;
     }
 
     public <T> void put(String key, T value) {
-        state.put(key, value);
+        var status = stageStatus.get();
+        if (status != null && key.equals("?")) {
+            status[0] = (Integer) value;
+            return;
+        }
+        var previous = state.put(key, value);
+        if (!Objects.equals(previous, value)) changed(key, value);
+    }
+
+    /**
+     * Removes the variable together with its export attribute.
+     */
+    public void remove(String key) {
+        var previous = state.remove(key);
+        if (exported.remove(key)) changes.incrementAndGet();
+        if (previous != null) changed(key, null);
+    }
+
+    /**
+     * Marks the variable for the environment of child processes.
+     */
+    public void export(String key) {
+        if (exported.add(key) && state.containsKey(key)) changes.incrementAndGet();
+    }
+
+    /**
+     * Registers a listener which is called with the new value
+     * every time the given key changes.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void subscribe(String key, Consumer<T> listener) {
+        listeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add((Consumer<Object>) listener);
+    }
+
+    /**
+     * The value of a variable as it is expanded on the command line, or null when unset.
+     */
+    String variable(String name) {
+        var value = state.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    Path pwd() {
+        var pwd = state.get("PWD");
+        if (pwd instanceof Path path) return path;
+        return pwd == null ? Paths.get("").toAbsolutePath() : Paths.get(pwd.toString()).toAbsolutePath();
+    }
+
+    Environment environment() {
+        var snapshot = environment;
+        int version = changes.get();
+        if (snapshot == null || snapshot.version() != version) {
+            var variables = new HashMap<String, String>();
+            for (var name : exported) {
+                var value = state.get(name);
+                if (value != null) variables.put(name, value.toString());
+            }
+            environment = snapshot = Environment.of(variables, version);
+        }
+        return snapshot;
+    }
+
+    Map<String, String> exported() {
+        return new TreeMap<>(environment().variables());
+    }
+
+    /**
+     * Runs a builtin as a pipeline stage and returns the status it set. Stages
+     * run side by side, so their statuses are kept apart from each other and
+     * from {@code $?}, which is set from the last stage only.
+     */
+    int stage(Command.Cmd command, Context context) throws IOException {
+        var status = new int[1];
+        stageStatus.set(status);
+        try {
+            command.execute(context, this);
+        } finally {
+            stageStatus.remove();
+        }
+        return status[0];
+    }
+
+    Resolver resolver() {
+        return resolver;
+    }
+
+    public Jobs jobs() {
+        return jobs;
+    }
+
+    Journal journal() {
+        return journal;
+    }
+
+    private void changed(String key, Object value) {
+        if (exported.contains(key)) changes.incrementAndGet();
+        listeners.getOrDefault(key, List.of()).forEach(listener -> listener.accept(value));
     }
 }
@@ -0,0 +1,465 @@
+package shell;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+import com.sun.jna.ptr.IntByReference;
+import shell.Scanner.Lifecycle.NativeLibrary.Rusage;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static shell.Spawn.Constants.*;
+
+
+/**
+ * Starts external commands with {@code posix_spawn} called through JNA.
+ * <p>
+ * The JDK launcher spawns a helper which then execs the command; calling
+ * {@code posix_spawn} directly saves that second exec per command. Redirects,
+ * the pipes between stages and the working directory become file actions,
+ * and every descriptor above stderr is closed in the child. The parent ends
+ * of the pipes are reopened through {@code /proc/self/fd} as JDK streams, so
+ * reading and writing them stays ordinary blocking I/O. Every child is
+ * reaped by {@code wait4} on a platform thread, as the JDK reaps its own,
+ * which also hands over the child's own resource usage for {@link Time}.
+ * <p>
+ * Needs Linux with glibc 2.34 or newer; {@link #available()} is false
+ * elsewhere, or with {@code -Dshell.spawn=false}, and commands are then
+ * started with {@link ProcessBuilder}.
+ */
+final class Spawn {
+
+    private static final ExecutorService REAPER = Executors.newCachedThreadPool(
+            Thread.ofPlatform().daemon().name("spawn-reaper-", 0).factory());
+
+    /**
+     * Large enough for glibc's posix_spawn_file_actions_t (80 bytes),
+     * posix_spawnattr_t (336 bytes) and sigset_t (128 bytes).
+     */
+    private static final int STRUCT_SIZE = 512;
+
+    private static final String SHELL = "/bin/sh";
+
+    private static Environment environment;
+    private static StringArray envp;
+
+    private Spawn() {
+    }
+
+    static boolean available() {
+        return Holder.AVAILABLE;
+    }
+
+    /**
+     * Starts the commands connected by pipes, like {@link ProcessBuilder#startPipeline};
+     * the builders supply argv, the directory and the redirects, while the executable
+     * and the environment are passed as they are already resolved. A command which
+     * can't be started becomes a {@link FailedProcess}, and the others still run.
+     */
+    static List<Process> startPipeline(List<ProcessBuilder> builders, List<Path> executables, Environment environment) throws IOException {
+        var processes = new ArrayList<Process>();
+        var envp = envp(environment);
+        int previous = -1;
+        try {
+            for (int i = 0; i < builders.size(); i++) {
+                var builder = builders.get(i);
+                var last = i == builders.size() - 1;
+
+                int[] stdin = {previous, -1}, stdout = {-1, -1}, stderr = {-1, -1};
+                previous = -1;
+                try {
+                    if (stdin[0] < 0) stdin = open(builder.redirectInput());
+                    stdout = last ? open(builder.redirectOutput()) : pipe();
+                    stderr = open(builder.redirectError());
+
+                    var pid = new IntByReference();
+                    int error = spawn(executables.get(i), builder, envp, stdin, stdout, stderr, pid);
+                    if (error != 0) {
+                        // the next stage reads an empty pipe, as if this one had exited at once
+                        processes.add(new FailedProcess(builder.command().getFirst(), error));
+                        if (!last) previous = stdout[0];
+                        continue;
+                    }
+                    processes.add(new SpawnedProcess(pid.getValue(), stdin[1], last ? stdout[0] : -1, stderr[0]));
+                    stdin[1] = stderr[0] = -1;
+                    if (last) stdout[0] = -1;
+                    else previous = stdout[0];
+                } finally {
+                    // the child's ends, and the parent's ends no process took over
+                    close(stdin[0], stdin[1], stdout[1], stderr[0], stderr[1]);
+                    if (previous != stdout[0]) close(stdout[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(previous);
+            processes.forEach(Process::destroyForcibly);
+            throw e;
+        }
+        return processes;
+    }
+
+    /**
+     * Spawns one command into {@code pid}, returning 0 or the error {@code posix_spawn}
+     * reported. A file without a {@code #!} line is run by {@code /bin/sh}, as the
+     * JDK launcher and {@code execvp} do.
+     */
+    private static int spawn(Path executable, ProcessBuilder builder, Pointer envp,
+                             int[] stdin, int[] stdout, int[] stderr, IntByReference pid) {
+        var library = NativeLibrary.INSTANCE;
+        var actions = new Memory(STRUCT_SIZE);
+        var attributes = new Memory(STRUCT_SIZE);
+        var mask = new Memory(STRUCT_SIZE);
+        library.posix_spawn_file_actions_init(actions);
+        library.posix_spawnattr_init(attributes);
+        try {
+            redirect(actions, builder.redirectInput(), stdin[0], STDIN_FILENO, O_RDONLY);
+            redirect(actions, builder.redirectOutput(), stdout[1], STDOUT_FILENO, O_WRONLY | O_CREAT | O_TRUNC);
+            redirect(actions, builder.redirectError(), stderr[1], STDERR_FILENO, O_WRONLY | O_CREAT | O_TRUNC);
+            library.posix_spawn_file_actions_addclosefrom_np(actions, STDERR_FILENO + 1);
+            if (builder.directory() != null)
+                library.posix_spawn_file_actions_addchdir_np(actions, builder.directory().getAbsolutePath());
+
+            // JVM threads may block signals the command expects to receive
+            library.sigemptyset(mask);
+            library.posix_spawnattr_setsigmask(attributes, mask);
+            library.posix_spawnattr_setflags(attributes, POSIX_SPAWN_SETSIGMASK);
+
+            var argv = builder.command().toArray(String[]::new);
+            int error = library.posix_spawn(pid, executable.toString(), actions, attributes, argv, envp);
+            if (error != ENOEXEC) return error;
+
+            argv[0] = executable.toString();
+            var script = new String[argv.length + 1];
+            script[0] = SHELL;
+            System.arraycopy(argv, 0, script, 1, argv.length);
+            return library.posix_spawn(pid, SHELL, actions, attributes, script, envp);
+        } finally {
+            library.posix_spawn_file_actions_destroy(actions);
+            library.posix_spawnattr_destroy(attributes);
+        }
+    }
+
+    /**
+     * Attaches the child's end of a pipe, or opens the redirect file, as the given descriptor.
+     */
+    private static void redirect(Pointer actions, Redirect redirect, int fd, int target, int flags) {
+        var library = NativeLibrary.INSTANCE;
+        if (fd >= 0) {
+            library.posix_spawn_file_actions_adddup2(actions, fd, target);
+        } else if (redirect.file() != null) {
+            if (redirect.type() == Redirect.Type.APPEND) flags = flags & ~O_TRUNC | O_APPEND;
+            library.posix_spawn_file_actions_addopen(actions, target, redirect.file().getAbsolutePath(), flags, 0666);
+        }
+    }
+
+    /**
+     * Returns {@code {read, write}} for a piped stream, or {@code {-1, -1}} when
+     * the child gets a file or inherits the descriptor.
+     */
+    private static int[] open(Redirect redirect) throws IOException {
+        return redirect == Redirect.PIPE ? pipe() : new int[]{-1, -1};
+    }
+
+    private static int[] pipe() throws IOException {
+        var fds = new int[2];
+        if (NativeLibrary.INSTANCE.pipe2(fds, O_CLOEXEC) != 0)
+            throw new IOException("pipe: error=" + Native.getLastError());
+        return fds;
+    }
+
+    private static void close(int... fds) {
+        for (int fd : fds)
+            if (fd >= 0) NativeLibrary.INSTANCE.close(fd);
+    }
+
+    /**
+     * The native environment block, rebuilt only for a new {@link Environment} snapshot.
+     */
+    private static synchronized Pointer envp(Environment snapshot) {
+        if (snapshot != environment) {
+            var entries = new ArrayList<String>(snapshot.variables().size());
+            for (Map.Entry<String, String> variable : snapshot.variables().entrySet())
+                entries.add(variable.getKey() + "=" + variable.getValue());
+            envp = new StringArray(entries.toArray(String[]::new));
+            environment = snapshot;
+        }
+        return envp;
+    }
+
+    /**
+     * Reopens the parent's end of a pipe as a JDK stream and closes the raw descriptor.
+     */
+    private static InputStream input(int fd) throws IOException {
+        if (fd < 0) return InputStream.nullInputStream();
+        try {
+            return new FileInputStream("/proc/self/fd/" + fd);
+        } finally {
+            close(fd);
+        }
+    }
+
+    private static OutputStream output(int fd) throws IOException {
+        if (fd < 0) return OutputStream.nullOutputStream();
+        try {
+            return new FileOutputStream("/proc/self/fd/" + fd);
+        } finally {
+            close(fd);
+        }
+    }
+
+    /**
+     * A command {@code posix_spawn} couldn't start. It has exited with 127 when
+     * the file is gone, like a command not found, or with 126 otherwise, and
+     * its {@link #message()} is what the shell reports in its place.
+     */
+    static final class FailedProcess extends Process {
+
+        private final String message;
+        private final int exit;
+
+        FailedProcess(String command, int error) {
+            this.message = "%s: %s".formatted(command, NativeLibrary.INSTANCE.strerror(error));
+            this.exit = error == ENOENT ? 127 : 126;
+        }
+
+        String message() {
+            return message;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public int waitFor() {
+            return exit;
+        }
+
+        @Override
+        public int exitValue() {
+            return exit;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return false;
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    static final class SpawnedProcess extends Process {
+
+        private final int pid;
+        private final OutputStream stdin;
+        private final InputStream stdout;
+        private final InputStream stderr;
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+        private volatile Rusage usage;
+
+        SpawnedProcess(int pid, int stdin, int stdout, int stderr) throws IOException {
+            this.pid = pid;
+            this.stdin = output(stdin);
+            this.stdout = input(stdout);
+            this.stderr = input(stderr);
+            REAPER.execute(this::reap);
+        }
+
+        private void reap() {
+            var status = new IntByReference();
+            var usage = new Rusage();
+            while (NativeLibrary.INSTANCE.wait4(pid, status, 0, usage) < 0) {
+                if (Native.getLastError() != EINTR) {
+                    exit.complete(1);
+                    return;
+                }
+            }
+            // published before the exit, so whoever saw the exit sees the usage
+            this.usage = usage;
+            int code = status.getValue();
+            // a command killed by a signal exits with 128 + signal, like in the JDK and in bash
+            exit.complete((code & 0x7f) == 0 ? (code >> 8) & 0xff : 0x80 + (code & 0x7f));
+        }
+
+        /**
+         * What the child used over its lifetime, as {@code wait4} reported it;
+         * null until it has been reaped.
+         */
+        Rusage usage() {
+            return usage;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return stderr;
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            try {
+                return exit.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        @Override
+        public int exitValue() {
+            if (!exit.isDone()) throw new IllegalThreadStateException("process hasn't exited");
+            return exit.join();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !exit.isDone();
+        }
+
+        @Override
+        public long pid() {
+            return pid;
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return exit.thenApply(code -> this);
+        }
+
+        @Override
+        public boolean supportsNormalTermination() {
+            return true;
+        }
+
+        @Override
+        public void destroy() {
+            if (isAlive()) NativeLibrary.INSTANCE.kill(pid, SIGTERM);
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            if (isAlive()) NativeLibrary.INSTANCE.kill(pid, SIGKILL);
+            return this;
+        }
+    }
+
+    private static final class Holder {
+        static final boolean AVAILABLE = probe();
+
+        /**
+         * Looks the newest function up front, so missing support shows
+         * here and not when the first command is started.
+         */
+        private static boolean probe() {
+            if (!Platform.isLinux() || !Platform.is64Bit() || System.getProperty("shell.spawn", "true").equals("false"))
+                return false;
+            try {
+                com.sun.jna.NativeLibrary.getInstance("c").getFunction("posix_spawn_file_actions_addclosefrom_np");
+                return true;
+            } catch (UnsatisfiedLinkError e) {
+                return false;
+            }
+        }
+    }
+
+    interface NativeLibrary extends Library {
+        NativeLibrary INSTANCE = Native.load("c", NativeLibrary.class);
+
+        int posix_spawn(IntByReference pid, String path, Pointer fileActions, Pointer attributes, String[] argv, Pointer envp);
+
+        int posix_spawn_file_actions_init(Pointer fileActions);
+
+        int posix_spawn_file_actions_destroy(Pointer fileActions);
+
+        int posix_spawn_file_actions_addopen(Pointer fileActions, int fd, String path, int flags, int mode);
+
+        int posix_spawn_file_actions_adddup2(Pointer fileActions, int fd, int target);
+
+        int posix_spawn_file_actions_addclosefrom_np(Pointer fileActions, int from);
+
+        int posix_spawn_file_actions_addchdir_np(Pointer fileActions, String path);
+
+        int posix_spawnattr_init(Pointer attributes);
+
+        int posix_spawnattr_destroy(Pointer attributes);
+
+        int posix_spawnattr_setflags(Pointer attributes, short flags);
+
+        int posix_spawnattr_setsigmask(Pointer attributes, Pointer mask);
+
+        int sigemptyset(Pointer mask);
+
+        int pipe2(int[] fds, int flags);
+
+        int close(int fd);
+
+        int wait4(int pid, IntByReference status, int options, Rusage rusage);
+
+        int kill(int pid, int signal);
+
+        String strerror(int error);
+    }
+
+    interface Constants {
+        int STDIN_FILENO = 0;
+        int STDOUT_FILENO = 1;
+        int STDERR_FILENO = 2;
+
+        int O_RDONLY = 0;
+        int O_WRONLY = 1;
+        int O_CREAT = 64;
+        int O_TRUNC = 512;
+        int O_APPEND = 1024;
+        int O_CLOEXEC = 524288;
+
+        short POSIX_SPAWN_SETSIGMASK = 8;
+
+        int ENOENT = 2;
+        int EINTR = 4;
+        int ENOEXEC = 8;
+        int SIGKILL = 9;
+        int SIGTERM = 15;
+    }
+}
@@ -0,0 +1,45 @@
+package shell;
+
+import java.time.Duration;
+import java.time.Instant;
+
+
+/**
+ * Startup timings, printed per phase to stderr when enabled with {@code --startup-trace}.
+ * <p>
+ * The JVM start comes from the OS process start time, which has clock-tick
+ * resolution; the other phases are measured with {@link System#nanoTime()}.
+ */
+public final class Startup {
+
+    private static volatile boolean enabled;
+    private static volatile boolean painted;
+    private static Instant started = Instant.now();
+
+    private Startup() {
+    }
+
+    public static void enable() {
+        enabled = true;
+        started = ProcessHandle.current().info().startInstant().orElse(started);
+        report("jvm -> main", Duration.between(started, Instant.now()));
+    }
+
+    static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void end(String phase, long begin) {
+        if (enabled) report(phase, Duration.ofNanos(System.nanoTime() - begin));
+    }
+
+    static void firstPaint() {
+        if (!enabled || painted) return;
+        painted = true;
+        report("first paint", Duration.between(started, Instant.now()));
+    }
+
+    private static void report(String phase, Duration duration) {
+        System.err.printf("startup: %-14s %8.2f ms%n", phase, duration.toNanos() / 1e6);
+    }
+}
@@ -1,21 +1,55 @@
 package shell;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
 
 
 public class Suggest {
 
-    private final Trie trie = new Trie();
+    private final Map<String, Integer> keys = new HashMap<>();
 
-    public void index(String key) {
-        trie.index(key);
+    private volatile Trie trie = Trie.EMPTY;
+    private volatile boolean dirty;
+
+    /**
+     * Adds a key to the index. Keys are reference counted, so a name indexed
+     * from several sources stays suggested until every source removes it.
+     */
+    public synchronized void index(String key) {
+        if (key.isEmpty()) return;
+        keys.merge(key, 1, Integer::sum);
+        dirty = true;
     }
 
+    public synchronized void remove(String key) {
+        if (!keys.containsKey(key)) return;
+        keys.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+        dirty = true;
+    }
+
+    /**
+     * Looks up the given prefix. Safe to call concurrently with updates:
+     * lookups run against an immutable snapshot which is rebuilt at most
+     * once per batch of changes.
+     */
     public Result suggest(String prefix) {
-        return trie.suggest(prefix);
+        return snapshot().suggest(prefix);
+    }
+
+    private Trie snapshot() {
+        if (dirty) {
+            synchronized (this) {
+                if (dirty) {
+                    var table = keys.keySet().toArray(String[]::new);
+                    Arrays.sort(table);
+                    trie = new Trie(table);
+                    dirty = false;
+                }
+            }
+        }
+        return trie;
     }
 
     /**
@@ -42,68 +76,140 @@ public class Suggest {
         }
     }
 
+    /**
+     * A compact radix (patricia) trie over a single sorted table of keys.
+     * <p>
+     * Nodes live in parallel int arrays: every node owns a slice of the packed
+     * {@code labels} array and a {@code [lo, hi)} range of the sorted table,
+     * so a lookup ends with a sublist view instead of a copy. Children of a node
+     * are laid out contiguously and ordered by their first label char.
+     * <p>
+     * Instances are immutable once compiled.
+     */
     private static class Trie {
-        private Node root;
+        static final Trie EMPTY = new Trie(new String[0]);
+
+        private final String[] table;
+        private final List<String> values;
+
+        private char[] labels;
+        private int[] labelStart, labelEnd, depth, firstChild, childCount, lo, hi;
 
-        void index(String key) {
-            root = index(root, key.toCharArray(), key, 0);
+        Trie(String[] table) {
+            this.table = table;
+            this.values = List.of(table);
+            compile();
         }
 
         Result suggest(String prefix) {
-            var node = search(root, prefix.toCharArray(), 0);
-            if (node == null) return Result.notFound();
-
-            var sb = new StringBuilder(prefix);
-            var curr = node.middle;
-            while (curr != null && curr.isCommonPrefix()) {
-                sb.append(curr.symbol);
-                if (curr.hit) break;
-                curr = curr.middle;
-            }
-            return Result.of(sb.toString(), new ArrayList<>(node.values));
+            if (table.length == 0) return Result.notFound();
+
+            int node = search(prefix);
+            if (node < 0) return Result.notFound();
+
+            var lcp = table[lo[node]].substring(0, depth[node] + labelEnd[node] - labelStart[node]);
+            return Result.of(lcp, values.subList(lo[node], hi[node]));
         }
 
-        private Node index(Node node, char[] data, String value, int index) {
-            if (node == null) node = new Node(data[index]);
-
-            if (data[index] > node.symbol) {
-                node.right = index(node.right, data, value, index);
-            } else if (data[index] < node.symbol) {
-                node.left = index(node.left, data, value, index);
-            } else {
-                if (index < data.length - 1)
-                    node.middle = index(node.middle, data, value, index + 1);
-                else
-                    node.hit = true;
-                node.values.add(value);
+        private int search(String prefix) {
+            int node = 0, pos = 0;
+            while (true) {
+                for (int i = labelStart[node]; i < labelEnd[node]; i++, pos++) {
+                    if (pos == prefix.length()) return node;
+                    if (labels[i] != prefix.charAt(pos)) return -1;
+                }
+                if (pos == prefix.length()) return node;
+
+                node = child(node, prefix.charAt(pos));
+                if (node < 0) return -1;
             }
-
-            return node;
         }
 
-        private Node search(Node node, char[] data, int index) {
-            if (index == data.length || node == null) return node;
+        private int child(int node, char c) {
+            int low = firstChild[node], high = low + childCount[node] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char symbol = labels[labelStart[mid]];
+                if (symbol < c) low = mid + 1;
+                else if (symbol > c) high = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
 
-            if (data[index] > node.symbol) return search(node.right, data, index);
-            if (data[index] < node.symbol) return search(node.left, data, index);
-            if (index == data.length - 1) return node;
+        /**
+         * Lays the trie out breadth-first, so the children of every node are
+         * contiguous. A node covering {@code [lo, hi)} at a given depth carries
+         * the common prefix of {@code table[lo]} and {@code table[hi - 1]} as its
+         * label, which is the common prefix of the whole range since the table
+         * is sorted.
+         */
+        private void compile() {
+            var nodes = new Layout(table.length * 2 + 1);
+            var packed = new StringBuilder();
+
+            if (table.length > 0) nodes.add(0, 0, table.length);
+            for (int node = 0; node < nodes.size; node++) {
+                int from = nodes.lo[node], to = nodes.hi[node], start = nodes.depth[node];
+
+                int end = start + commonPrefix(table[from], table[to - 1], start);
+                nodes.labelStart[node] = packed.length();
+                packed.append(table[from], start, end);
+                nodes.labelEnd[node] = packed.length();
+
+                // a key ending right at this node sorts first and is not a child
+                int i = table[from].length() == end ? from + 1 : from;
+                nodes.firstChild[node] = nodes.size;
+                while (i < to) {
+                    char c = table[i].charAt(end);
+                    int j = i + 1;
+                    while (j < to && table[j].charAt(end) == c) j++;
+                    nodes.add(end, i, j);
+                    i = j;
+                }
+                nodes.childCount[node] = nodes.size - nodes.firstChild[node];
+            }
 
-            return search(node.middle, data, index + 1);
+            int size = nodes.size;
+            labels = packed.toString().toCharArray();
+            labelStart = Arrays.copyOf(nodes.labelStart, size);
+            labelEnd = Arrays.copyOf(nodes.labelEnd, size);
+            depth = Arrays.copyOf(nodes.depth, size);
+            firstChild = Arrays.copyOf(nodes.firstChild, size);
+            childCount = Arrays.copyOf(nodes.childCount, size);
+            lo = Arrays.copyOf(nodes.lo, size);
+            hi = Arrays.copyOf(nodes.hi, size);
         }
 
-        private static class Node {
-            final Set<String> values = new TreeSet<>();
-            final char symbol;
-
-            Node left, right, middle;
-            boolean hit;
+        private static int commonPrefix(String a, String b, int from) {
+            int limit = Math.min(a.length(), b.length()), i = from;
+            while (i < limit && a.charAt(i) == b.charAt(i)) i++;
+            return i - from;
+        }
 
-            Node(char symbol) {
-                this.symbol = symbol;
+        /**
+         * Scratch arrays used while compiling; a radix trie over n keys
+         * never has more than 2n nodes.
+         */
+        private static class Layout {
+            final int[] labelStart, labelEnd, depth, firstChild, childCount, lo, hi;
+            int size;
+
+            Layout(int capacity) {
+                labelStart = new int[capacity];
+                labelEnd = new int[capacity];
+                depth = new int[capacity];
+                firstChild = new int[capacity];
+                childCount = new int[capacity];
+                lo = new int[capacity];
+                hi = new int[capacity];
             }
 
-            boolean isCommonPrefix() {
-                return left == null && right == null;
+            void add(int depth, int lo, int hi) {
+                this.depth[size] = depth;
+                this.lo[size] = lo;
+                this.hi[size] = hi;
+                size++;
             }
         }
     }
@@ -0,0 +1,115 @@
+package shell;
+
+import shell.Scanner.Lifecycle.NativeLibrary;
+import shell.Scanner.Lifecycle.NativeLibrary.Rusage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static shell.Scanner.Lifecycle.Constants.RUSAGE_CHILDREN;
+import static shell.Scanner.Lifecycle.Constants.RUSAGE_SELF;
+
+
+/**
+ * Resource usage of one command, reported by the {@code time} keyword.
+ * <p>
+ * User and sys time cover both the shell and its children, like in bash;
+ * the shell's own share is sampled with {@code getrusage} before and after the
+ * command. Children started by {@link Spawn} are reaped with {@code wait4},
+ * which reports each child's own usage: their times and context switches are
+ * summed and max RSS is the peak of any of them. The kernel counts the memory
+ * a child shared with the shell before its exec, so every child reports at
+ * least the shell's RSS at the time it was started; that figure is printed as
+ * an upper bound, {@code maxrss <=57304k}.
+ * <p>
+ * Children started through {@link ProcessBuilder} are reaped by the JDK, and
+ * children still running, as in a timed background command, haven't been
+ * reaped yet. For those {@code RUSAGE_CHILDREN} is sampled instead: its max RSS
+ * is the peak of any child reaped so far, and a background job finishing while
+ * a command is timed is counted in that command's figures.
+ */
+final class Time {
+
+    private final Rusage self = usage(RUSAGE_SELF);
+    private final Rusage children = usage(RUSAGE_CHILDREN);
+    private final long wall = System.nanoTime();
+
+    /**
+     * Starts measuring, or returns null when the command is not timed.
+     */
+    static Time start(boolean timed) {
+        return timed ? new Time() : null;
+    }
+
+    /**
+     * Prints the figures since {@link #start(boolean)} to the terminal's stderr;
+     * the child figures only when the command started processes.
+     */
+    void report(List<Process> processes) throws IOException {
+        long real = (System.nanoTime() - wall) / 1_000;
+        var selfNow = usage(RUSAGE_SELF);
+        long user = selfNow.userMicros() - self.userMicros();
+        long sys = selfNow.systemMicros() - self.systemMicros();
+        long maxrss = 0, voluntary = 0, involuntary = 0;
+
+        var reaped = reaped(processes);
+        var bound = "";
+        if (reaped != null) {
+            for (var usage : reaped) {
+                user += usage.userMicros();
+                sys += usage.systemMicros();
+                maxrss = Math.max(maxrss, usage.ru_maxrss);
+                voluntary += usage.ru_nvcsw;
+                involuntary += usage.ru_nivcsw;
+            }
+            bound = "<=";
+        } else {
+            var childrenNow = usage(RUSAGE_CHILDREN);
+            user += childrenNow.userMicros() - children.userMicros();
+            sys += childrenNow.systemMicros() - children.systemMicros();
+            maxrss = childrenNow.ru_maxrss;
+            voluntary = childrenNow.ru_nvcsw - children.ru_nvcsw;
+            involuntary = childrenNow.ru_nivcsw - children.ru_nivcsw;
+        }
+
+        var stderr = Output.TerminalWriter.STDERR;
+        stderr.writeLine("");
+        stderr.writeLine("real\t" + format(real));
+        stderr.writeLine("user\t" + format(user));
+        stderr.writeLine("sys\t" + format(sys));
+
+        if (!processes.isEmpty()) {
+            stderr.writeLine("maxrss\t%s%dk".formatted(bound, maxrss));
+            stderr.writeLine("csw\t%d voluntary, %d involuntary".formatted(voluntary, involuntary));
+        }
+        stderr.close();
+    }
+
+    /**
+     * The usage {@code wait4} reported for every process, or null if any of
+     * them wasn't started by {@link Spawn} or hasn't been reaped yet.
+     */
+    private static List<Rusage> reaped(List<Process> processes) {
+        var reaped = new ArrayList<Rusage>(processes.size());
+        for (var process : processes) {
+            if (!(process instanceof Spawn.SpawnedProcess spawned) || spawned.usage() == null) return null;
+            reaped.add(spawned.usage());
+        }
+        return reaped;
+    }
+
+    /**
+     * Formats microseconds as bash does, {@code 0m0.004s}.
+     */
+    private static String format(long micros) {
+        long millis = Math.max(0, micros) / 1_000;
+        return "%dm%d.%03ds".formatted(millis / 60_000, millis / 1_000 % 60, millis % 1_000);
+    }
+
+    private static Rusage usage(int who) {
+        var usage = new Rusage();
+        NativeLibrary.INSTANCE.getrusage(who, usage);
+        return usage;
+    }
+}
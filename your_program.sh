@@ -21,4 +21,9 @@ set -e # Exit early if any commands fail
 #
 # - Edit this to change how your program runs locally
 # - Edit .codecrafters/run.sh to change how your program runs remotely
+# Uses the AppCDS archive when one was built with `mvn package -Pappcds`
+CDS_ARCHIVE=/tmp/codecrafters-build-shell-java/codecrafters-shell.jsa
+if [ -f "$CDS_ARCHIVE" ]; then
+  exec java -XX:SharedArchiveFile="$CDS_ARCHIVE" -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"
+fi
 exec java -jar /tmp/codecrafters-build-shell-java/codecrafters-shell.jar "$@"